@@ -2,8 +2,10 @@ package org;
 
 import org.visuals.Visualizer;
 
+import java.io.IOException;
+
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         Visualizer.main(args);
     }
 }
@@ -0,0 +1,51 @@
+package org.audio;
+
+import org.midireading.PackedMessage;
+
+import java.util.function.IntConsumer;
+
+import static javax.sound.midi.ShortMessage.NOTE_OFF;
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+// Which notes are sounding on each channel, one bit per (channel, key): 16 x 128 bits in 32 longs
+// Lets pause & seek release exactly the notes that are on, instead of sending all-notes-off everywhere
+public class ActiveNotes {
+
+    private final long[] bits = new long[16 * 128 / 64];
+
+    // Follows a packed message about to be played
+    public void track(int message) {
+        int command = PackedMessage.getCommand(message);
+        if (command != NOTE_ON && command != NOTE_OFF) return;
+        int bit = PackedMessage.getChannel(message) << 7 | PackedMessage.getData1(message);
+        if (PackedMessage.isNoteOn(message))
+            bits[bit >>> 6] |= 1L << bit;
+        else
+            bits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    // Sends a NOTE_OFF for every sounding note and forgets them
+    public void releaseAll(IntConsumer out) {
+        for (int word = 0; word < bits.length; word++) {
+            long remaining = bits[word];
+            while (remaining != 0) {
+                int bit = word << 6 | Long.numberOfTrailingZeros(remaining);
+                out.accept(PackedMessage.pack(NOTE_OFF | bit >>> 7, bit & 0x7F, 0));
+                remaining &= remaining - 1;
+            }
+            bits[word] = 0;
+        }
+    }
+
+    public boolean isOn(int channel, int key) {
+        int bit = channel << 7 | key;
+        return (bits[bit >>> 6] & 1L << bit) != 0;
+    }
+
+    public int count() {
+        int count = 0;
+        for (long word : bits)
+            count += Long.bitCount(word);
+        return count;
+    }
+}
@@ -0,0 +1,64 @@
+package org.audio;
+
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.SourceDataLine;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+// Access to the software synthesizer's stream mode (com.sun.media.sound.AudioSynthesizer.openStream),
+// where it renders into an AudioInputStream we read ourselves instead of playing through its own line
+// AudioSynthesizer isn't exported by java.desktop, so it's called reflectively; the JVM needs
+//   --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED
+public final class AudioSynth {
+
+    // Opens without loading the whole default soundbank, MusicHandler loads the song's instruments (see InstrumentLoader)
+    public static final Map<String, Object> SONG_INSTRUMENTS_ONLY = Map.of("load default soundbank", false);
+
+    private AudioSynth() {}
+
+    // Opens a synthesizer on its own line with info, or just opens it if it doesn't take any
+    // Without the --add-exports flag, info can't be passed and the synthesizer loads its whole default soundbank
+    public static void open(Synthesizer synth, Map<String, Object> info) throws MidiUnavailableException {
+        try {
+            Method open = synth.getClass().getMethod("open", SourceDataLine.class, Map.class);
+            open.invoke(synth, null, info);
+        } catch (NoSuchMethodException e) {
+            synth.open();
+        } catch (IllegalAccessException e) {
+            System.err.println("WARNING: " + synth.getDeviceInfo().getName() + " opened with its whole default soundbank, "
+                    + "run with --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED (or java -jar) "
+                    + "to load only the song's instruments");
+            synth.open();
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof MidiUnavailableException unavailable) throw unavailable;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Opens a synthesizer in stream mode, audio is then rendered as the stream is read
+    // Info keys are the synthesizer's own ("control rate", "max polyphony", "load default soundbank"...)
+    public static AudioInputStream openStream(Synthesizer synth, AudioFormat format, Map<String, Object> info)
+            throws MidiUnavailableException {
+        try {
+            Method openStream = synth.getClass().getMethod("openStream", AudioFormat.class, Map.class);
+            return (AudioInputStream) openStream.invoke(synth, format, info);
+        } catch (NoSuchMethodException e) {
+            throw new MidiUnavailableException(synth.getDeviceInfo().getName() + " can't render to a stream");
+        } catch (IllegalAccessException e) {
+            throw new MidiUnavailableException(
+                    "Stream rendering needs --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED");
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof MidiUnavailableException unavailable) throw unavailable;
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // 16-bit stereo, what the synthesizer renders by default
+    public static AudioFormat defaultFormat(float sampleRate) {
+        return new AudioFormat(sampleRate, 16, 2, true, false);
+    }
+}
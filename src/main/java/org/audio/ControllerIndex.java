@@ -0,0 +1,155 @@
+package org.audio;
+
+import org.midireading.PackedMessage;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import static javax.sound.midi.ShortMessage.*;
+
+// Where every controller, program, pitch bend & channel pressure change of a timeline is, per channel,
+// so the state of all 16 channels at any point of a song can be restored without replaying it:
+// each setting the song ever touches is one binary search over its own list of changes
+//
+// Each (channel, setting) pair is a slot, and a slot's list holds the timeline indices of its changes.
+// Data entry only means something for the parameter selected at the time, so it's kept per RPN instead
+public class ControllerIndex {
+
+    private final int[][] slotEvents = new int[CHANNELS * SLOTS][];
+    private final int[] slotCounts = new int[CHANNELS * SLOTS];
+    private final int[] selectedRpn = new int[CHANNELS];    // Per channel while indexing, -1 if none
+    private final int[] rpnMsb = new int[CHANNELS];
+    private final int[] rpnLsb = new int[CHANNELS];
+    private int consumed;               // Timeline events already indexed
+
+    public ControllerIndex() {
+        Arrays.fill(selectedRpn, -1);
+        Arrays.fill(rpnMsb, 0x7F);
+        Arrays.fill(rpnLsb, 0x7F);
+    }
+
+    // Indexes the timeline's newly published events
+    public void update(PlaybackTimeline timeline) {
+        int available = timeline.size();
+        for (; consumed < available; consumed++) {
+            int message = timeline.getMessage(consumed);
+            int channel = PackedMessage.getChannel(message);
+            int data1 = PackedMessage.getData1(message);
+            switch (PackedMessage.getCommand(message)) {
+                case CONTROL_CHANGE:
+                    if (data1 >= FIRST_MODE_CONTROLLER) break;     // All notes off etc. aren't state
+                    if (data1 == RPN_MSB || data1 == RPN_LSB) {
+                        if (data1 == RPN_MSB) rpnMsb[channel] = PackedMessage.getData2(message);
+                        else rpnLsb[channel] = PackedMessage.getData2(message);
+                        selectedRpn[channel] = rpnMsb[channel] == 0 && rpnLsb[channel] < RPNS ? rpnLsb[channel] : -1;
+                    } else if (data1 == NRPN_MSB || data1 == NRPN_LSB) {
+                        selectedRpn[channel] = -1;
+                    } else if (data1 == DATA_ENTRY_MSB || data1 == DATA_ENTRY_LSB) {
+                        if (selectedRpn[channel] >= 0)
+                            add(channel, (data1 == DATA_ENTRY_MSB ? RPN_MSB_SLOT : RPN_LSB_SLOT) + selectedRpn[channel]);
+                    } else
+                        add(channel, data1);
+                    break;
+
+                case PROGRAM_CHANGE:
+                    add(channel, PROGRAM_SLOT);
+                    break;
+
+                case PITCH_BEND:
+                    add(channel, PITCH_BEND_SLOT);
+                    break;
+
+                case CHANNEL_PRESSURE:
+                    add(channel, PRESSURE_SLOT);
+                    break;
+            }
+        }
+    }
+
+    private void add(int channel, int slot) {
+        int s = channel * SLOTS + slot;
+        int[] events = slotEvents[s];
+        if (events == null)
+            events = slotEvents[s] = new int[8];
+        else if (slotCounts[s] == events.length)
+            events = slotEvents[s] = Arrays.copyOf(events, events.length * 2);
+        events[slotCounts[s]++] = consumed;
+    }
+
+    // Sends the messages that put every setting the song touches back the way it was just before an event
+    // (settings without a change before then go back to their defaults), bank selects before programs
+    public void restore(PlaybackTimeline timeline, int eventIndex, IntConsumer out) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            restore(timeline, channel, BANK_MSB, eventIndex, out);
+            restore(timeline, channel, BANK_LSB, eventIndex, out);
+            restore(timeline, channel, PROGRAM_SLOT, eventIndex, out);
+            for (int slot = 0; slot < SLOTS; slot++)
+                if (slot != BANK_MSB && slot != BANK_LSB && slot != PROGRAM_SLOT)
+                    restore(timeline, channel, slot, eventIndex, out);
+        }
+    }
+
+    private void restore(PlaybackTimeline timeline, int channel, int slot, int eventIndex, IntConsumer out) {
+        int s = channel * SLOTS + slot;
+        if (slotCounts[s] == 0) return;
+
+        // Last change before the event
+        int found = Arrays.binarySearch(slotEvents[s], 0, slotCounts[s], eventIndex);
+        int last = (found >= 0 ? found : -found - 1) - 1;
+        int message = last >= 0 ? timeline.getMessage(slotEvents[s][last]) : 0;
+        int data1 = last >= 0 ? PackedMessage.getData1(message) : 0;
+        int data2 = last >= 0 ? PackedMessage.getData2(message) : 0;
+
+        if (slot < 128) {
+            out.accept(PackedMessage.pack(CONTROL_CHANGE | channel, slot, last >= 0 ? data2 : defaultController(slot)));
+        } else if (slot == PROGRAM_SLOT) {
+            out.accept(PackedMessage.pack(PROGRAM_CHANGE | channel, data1, 0));
+        } else if (slot == PITCH_BEND_SLOT) {
+            out.accept(last >= 0 ? message : PackedMessage.pack(PITCH_BEND | channel, 0, 0x40));
+        } else if (slot == PRESSURE_SLOT) {
+            out.accept(PackedMessage.pack(CHANNEL_PRESSURE | channel, data1, 0));
+        } else {
+            // Select the parameter, set it, then deselect it so stray data entries don't change it
+            boolean msb = slot < RPN_LSB_SLOT;
+            int rpn = slot - (msb ? RPN_MSB_SLOT : RPN_LSB_SLOT);
+            out.accept(PackedMessage.pack(CONTROL_CHANGE | channel, RPN_MSB, 0));
+            out.accept(PackedMessage.pack(CONTROL_CHANGE | channel, RPN_LSB, rpn));
+            out.accept(PackedMessage.pack(CONTROL_CHANGE | channel, msb ? DATA_ENTRY_MSB : DATA_ENTRY_LSB,
+                    last >= 0 ? data2 : msb ? RPN_DEFAULTS[rpn] : 0));
+            out.accept(PackedMessage.pack(CONTROL_CHANGE | channel, RPN_MSB, 0x7F));
+            out.accept(PackedMessage.pack(CONTROL_CHANGE | channel, RPN_LSB, 0x7F));
+        }
+    }
+
+    // General MIDI power-on value of a controller
+    private static int defaultController(int controller) {
+        return switch (controller) {
+            case 7 -> 100;                          // Volume
+            case 8, 10 -> 64;                       // Balance, pan
+            case 11 -> 127;                         // Expression
+            default -> controller >= 70 && controller <= 79 ? 64 : 0;  // Sound controllers sit in the middle
+        };
+    }
+
+    private static final int CHANNELS = 16;
+    private static final int RPNS = 3;                      // Pitch bend range, fine tuning, coarse tuning
+
+    // Slots 0 - 127 are the controllers themselves
+    private static final int PROGRAM_SLOT = 128;
+    private static final int PITCH_BEND_SLOT = 129;
+    private static final int PRESSURE_SLOT = 130;
+    private static final int RPN_MSB_SLOT = 131;
+    private static final int RPN_LSB_SLOT = RPN_MSB_SLOT + RPNS;
+    private static final int SLOTS = RPN_LSB_SLOT + RPNS;
+
+    private static final int BANK_MSB = 0;
+    private static final int BANK_LSB = 32;
+    private static final int DATA_ENTRY_MSB = 6;
+    private static final int DATA_ENTRY_LSB = 38;
+    private static final int NRPN_LSB = 98;
+    private static final int NRPN_MSB = 99;
+    private static final int RPN_LSB = 100;
+    private static final int RPN_MSB = 101;
+    private static final int FIRST_MODE_CONTROLLER = 120;
+    private static final int[] RPN_DEFAULTS = {2, 64, 64};  // 2 semitone bend range, tuning centered
+}
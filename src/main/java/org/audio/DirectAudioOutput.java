@@ -0,0 +1,141 @@
+package org.audio;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.IOException;
+
+// Low-latency output: the synthesizer renders into a stream (see AudioSynth) and a dedicated audio thread
+// copies it into a SourceDataLine with a small buffer we choose, instead of the line & buffer the JDK picks
+// The buffer size is the latency between an event being played and it being heard, too small a buffer
+// underruns (the line runs dry and clicks), so it's tuned per machine with -Ddrumvis.audioBufferFrames
+public class DirectAudioOutput implements Runnable {
+
+    private final Synthesizer synth;
+    private final AudioInputStream stream;
+    private final SourceDataLine line;
+    private final int periodBytes;          // Rendered & written at a time
+
+    private volatile boolean running;
+    private volatile int underruns;
+    private volatile long writtenFrames;
+    private Thread thread;
+
+    // Opens the default synthesizer to a line holding about bufferFrames of audio
+    public static DirectAudioOutput open(int bufferFrames) throws MidiUnavailableException, LineUnavailableException {
+        return open(MidiSystem.getSynthesizer(), AudioSynth.defaultFormat(SAMPLE_RATE), bufferFrames);
+    }
+
+    public static DirectAudioOutput open(Synthesizer synth, AudioFormat format, int bufferFrames)
+            throws MidiUnavailableException, LineUnavailableException {
+        AudioInputStream stream = AudioSynth.openStream(synth, format, AudioSynth.SONG_INSTRUMENTS_ONLY);
+        try {
+            SourceDataLine line = AudioSystem.getSourceDataLine(format);
+            line.open(format, bufferFrames * format.getFrameSize());
+            return new DirectAudioOutput(synth, stream, line);
+        } catch (LineUnavailableException | RuntimeException e) {
+            synth.close();
+            throw e;
+        }
+    }
+
+    private DirectAudioOutput(Synthesizer synth, AudioInputStream stream, SourceDataLine line) {
+        this.synth = synth;
+        this.stream = stream;
+        this.line = line;
+        // The line may not give exactly the size asked for; write in quarters of what it did give
+        int frameSize = line.getFormat().getFrameSize();
+        periodBytes = Math.max(frameSize, line.getBufferSize() / 4 / frameSize * frameSize);
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        running = true;
+        thread = Thread.ofPlatform().daemon().name("audio-output").unstarted(this);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    // Stops the audio thread and closes the line & synthesizer
+    public synchronized void close() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+        line.close();
+        synth.close();
+    }
+
+    @Override
+    public void run() {
+        byte[] period = new byte[periodBytes];
+        int frameSize = line.getFormat().getFrameSize();
+        line.start();
+        try {
+            while (running) {
+                int read = 0;
+                while (read < periodBytes) {
+                    int n = stream.read(period, read, periodBytes - read);
+                    if (n < 0) return;          // Synthesizer was closed
+                    read += n;
+                }
+
+                // An empty buffer means the line ran dry while we were rendering
+                if (writtenFrames > 0 && line.available() >= line.getBufferSize())
+                    underruns++;
+                line.write(period, 0, read);    // Blocks until there's room, which paces the rendering
+                writtenFrames += read / frameSize;
+            }
+        } catch (IOException e) {
+            System.err.println("Audio output stopped: " + e.getMessage());
+        } finally {
+            line.drain();
+            line.stop();
+        }
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public Synthesizer getSynthesizer() {
+        return synth;
+    }
+
+    // Frames the line actually buffers, which may differ from the size asked for
+    public int getBufferFrames() {
+        return line.getBufferSize() / line.getFormat().getFrameSize();
+    }
+
+    // Time from an event being rendered to it being heard, at most
+    public long getLatencyNanos() {
+        return (long) (getBufferFrames() * 1e9 / line.getFormat().getSampleRate());
+    }
+
+    // Times the line ran dry since start()
+    public int getUnderruns() {
+        return underruns;
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Audio output: %d frame buffer (%.1f ms latency), %d underruns",
+                getBufferFrames(), getLatencyNanos() / 1e6, underruns);
+    }
+
+    private static final float SAMPLE_RATE = 44_100;
+    // From -Ddrumvis.audioBufferFrames (0 lets the synthesizer open its own line as usual)
+    public static final int DEFAULT_BUFFER_FRAMES = Integer.getInteger("drumvis.audioBufferFrames", 0);
+}
@@ -0,0 +1,59 @@
+package org.audio;
+
+import java.util.Arrays;
+
+// How late each event of a song actually went out compared to when it was due
+// Written by the dispatching thread only, and safe to read from any other (e.g. for an on-screen readout):
+// count is written last, so a reader that reads it first sees every event up to it
+public class DispatchStats {
+
+    private volatile int[] latenessMicros = new int[1024];  // By timeline index
+    private volatile int count;
+    private long totalNanos;
+    private volatile long maxNanos;
+    private volatile long lastNanos;
+
+    // Records that a timeline event went out latenessNanos after it was due
+    void record(int eventIndex, long latenessNanos) {
+        int[] lateness = latenessMicros;
+        if (eventIndex >= lateness.length)
+            latenessMicros = lateness = Arrays.copyOf(lateness, Math.max(eventIndex + 1, lateness.length * 2));
+        lateness[eventIndex] = (int) Math.min(Integer.MAX_VALUE, latenessNanos / 1000);
+        totalNanos += latenessNanos;
+        maxNanos = Math.max(maxNanos, latenessNanos);
+        lastNanos = latenessNanos;
+        count++;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    // Lateness of one timeline event (0 if it hasn't been dispatched)
+    public int getLatenessMicros(int eventIndex) {
+        if (count == 0) return 0;
+        int[] lateness = latenessMicros;
+        return eventIndex < lateness.length ? lateness[eventIndex] : 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getMeanNanos() {
+        int n = count;
+        return n == 0 ? 0 : totalNanos / n;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d events, lateness mean %.3f ms, max %.3f ms",
+                count, getMeanNanos() / 1e6, maxNanos / 1e6);
+    }
+}
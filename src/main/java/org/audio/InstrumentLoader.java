@@ -0,0 +1,219 @@
+package org.audio;
+
+import org.midireading.PackedMessage;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Patch;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static javax.sound.midi.ShortMessage.*;
+
+// Loads only the instruments a song plays into a synthesizer, instead of the whole soundbank
+// A pre-pass over the timeline follows each channel's bank selects & program changes, so a song using
+// five or six programs loads five or six instruments (plus the drum kit on channel 10), and the synthesizer
+// can be opened without its default soundbank (see AudioSynth.SONG_INSTRUMENTS_ONLY)
+//
+// The soundbank is the synthesizer's own, or a custom SF2 from -Ddrumvis.soundbank (a path or a URL):
+// soundbanks are parsed once per process, and downloaded ones are kept in the cache directory between runs
+public class InstrumentLoader {
+
+    private final Synthesizer synth;
+    private final Soundbank soundbank;
+    private final Instrument[] instruments;
+    private final Map<Integer, Integer> instrumentIndex = new HashMap<>();    // Patch key -> instrument
+    private final boolean[] loaded;
+    private int loadedCount;
+
+    // Channel state while scanning, like the synthesizer's own when it plays the same events
+    private final int[] bankMsb = new int[CHANNELS];
+    private final int[] bankLsb = new int[CHANNELS];
+    private final boolean[] programmed = new boolean[CHANNELS];
+    private int consumed;               // Timeline events already scanned
+
+    public InstrumentLoader(Synthesizer synth) {
+        this(synth, soundbankFor(synth));
+    }
+
+    public InstrumentLoader(Synthesizer synth, Soundbank soundbank) {
+        this.synth = synth;
+        this.soundbank = soundbank;
+        instruments = soundbank != null ? soundbank.getInstruments() : new Instrument[0];
+        loaded = new boolean[instruments.length];
+        // First one wins, like the synthesizer's own lookup
+        for (int i = instruments.length - 1; i >= 0; i--)
+            instrumentIndex.put(key(instruments[i]), i);
+    }
+
+    // Loads whatever the timeline's newly published events play
+    public synchronized void update(PlaybackTimeline timeline) {
+        int available = timeline.size();
+        for (; consumed < available; consumed++) {
+            int message = timeline.getMessage(consumed);
+            int channel = PackedMessage.getChannel(message);
+            switch (PackedMessage.getCommand(message)) {
+                case CONTROL_CHANGE:
+                    if (PackedMessage.getData1(message) == BANK_MSB) bankMsb[channel] = PackedMessage.getData2(message);
+                    else if (PackedMessage.getData1(message) == BANK_LSB) bankLsb[channel] = PackedMessage.getData2(message);
+                    break;
+
+                case PROGRAM_CHANGE:
+                    programmed[channel] = true;
+                    load(channel, PackedMessage.getData1(message));
+                    break;
+
+                case NOTE_ON:
+                    // Channels play program 0 (the standard kit on channel 10) until told otherwise
+                    if (!programmed[channel]) {
+                        programmed[channel] = true;
+                        load(channel, 0);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void load(int channel, int program) {
+        boolean drums = channel == DRUM_CHANNEL;
+        Integer index = instrumentIndex.get(key(drums, bankMsb[channel] << 7 | bankLsb[channel], program));
+        // Banks the soundbank doesn't have fall back to the General MIDI one, missing kits to the standard kit
+        if (index == null)
+            index = instrumentIndex.get(key(drums, 0, program));
+        if (index == null && drums)
+            index = instrumentIndex.get(key(true, 0, 0));
+        if (index != null)
+            load(index);
+    }
+
+    private void load(int index) {
+        if (loaded[index]) return;
+        loaded[index] = true;
+        loadedCount++;
+        synth.loadInstrument(instruments[index]);
+    }
+
+    // Loads every other instrument of the soundbank on a background thread, in case the song is changed on the fly
+    public void loadRestInBackground() {
+        Thread.ofPlatform().daemon().name("instrument-loader").priority(Thread.MIN_PRIORITY).start(() -> {
+            for (int i = 0; i < instruments.length; i++)
+                synchronized (this) {
+                    load(i);
+                }
+        });
+    }
+
+    /*=============== Soundbanks ===============*/
+
+    // Custom soundbank from -Ddrumvis.soundbank, or the synthesizer's default
+    public static Soundbank soundbankFor(Synthesizer synth) {
+        String location = System.getProperty("drumvis.soundbank");
+        if (location != null) {
+            try {
+                Soundbank custom = SOUNDBANKS.computeIfAbsent(location, InstrumentLoader::readSoundbank);
+                if (synth.isSoundbankSupported(custom))
+                    return custom;
+                System.err.println("Soundbank not supported by " + synth.getDeviceInfo().getName() + ": " + location);
+            } catch (IllegalStateException e) {
+                System.err.println("Could not load soundbank " + location + ": " + e.getCause().getMessage());
+            }
+        }
+        return synth.getDefaultSoundbank();
+    }
+
+    private static Soundbank readSoundbank(String location) {
+        try {
+            return MidiSystem.getSoundbank(cachedFile(location).toFile());
+        } catch (InvalidMidiDataException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Local file of a soundbank, downloading it into the cache directory the first time it's used
+    private static Path cachedFile(String location) throws IOException {
+        if (!location.contains("://"))
+            return Path.of(location);
+
+        Path cached = Path.of(System.getProperty("drumvis.cache", System.getProperty("user.home") + "/.drumvis/cache"))
+                .resolve(HexFormat.of().formatHex(sha256(location)) + SOUNDBANK_SUFFIX);
+        if (Files.exists(cached))
+            return cached;
+
+        // Downloaded next to where it goes, then moved in whole so a broken download is never used
+        Files.createDirectories(cached.getParent());
+        Path partial = Files.createTempFile(cached.getParent(), "soundbank", ".part");
+        try (InputStream in = URI.create(location).toURL().openStream()) {
+            Files.copy(in, partial, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partial, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        return cached;
+    }
+
+    private static byte[] sha256(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JDK is required to ship SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Instruments are told apart by bank, program, and whether they're a drum kit
+    private static int key(Instrument instrument) {
+        Patch patch = instrument.getPatch();
+        return key(isDrumKit(instrument), patch.getBank(), patch.getProgram());
+    }
+
+    private static int key(boolean drums, int bank, int program) {
+        return (drums ? 1 << 21 : 0) | bank << 7 | program;
+    }
+
+    // Drum kits share bank & program numbers with instruments, only the software synthesizer's own patch
+    // class knows which is which (its name gives it away when that class can't be reached)
+    private static boolean isDrumKit(Instrument instrument) {
+        Patch patch = instrument.getPatch();
+        try {
+            return (Boolean) patch.getClass().getMethod("isPercussion").invoke(patch);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return instrument.toString().startsWith("Drumkit");
+        }
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public Soundbank getSoundbank() {
+        return soundbank;
+    }
+
+    // Instruments loaded so far
+    public synchronized int getLoadedCount() {
+        return loadedCount;
+    }
+
+    public int getInstrumentCount() {
+        return instruments.length;
+    }
+
+    private static final Map<String, Soundbank> SOUNDBANKS = new ConcurrentHashMap<>();
+    private static final String SOUNDBANK_SUFFIX = ".sf2";
+    private static final int CHANNELS = 16;
+    private static final int DRUM_CHANNEL = 9;
+    private static final int BANK_MSB = 0;
+    private static final int BANK_LSB = 32;
+}
@@ -0,0 +1,47 @@
+package org.audio;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+
+// Software stand-in for a MIDI input like an e-kit: whatever is sent through it goes straight to its receiver,
+// on the sending thread, so a practice session can be played & scored without any hardware
+public class LoopbackTransmitter implements Transmitter {
+
+    private volatile Receiver receiver;
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    // Sends a message as if it had come in from the input right now
+    public void send(MidiMessage message) {
+        Receiver target = receiver;
+        if (target != null)
+            target.send(message, -1);
+    }
+
+    // Sends a drum hit on the percussion channel, like a pad being struck
+    public void hit(int key, int velocity) {
+        try {
+            send(new ShortMessage(ShortMessage.NOTE_ON, PERCUSSION_CHANNEL, key, velocity));
+        } catch (InvalidMidiDataException e) {
+            throw new IllegalArgumentException("Invalid drum hit: key " + key + ", velocity " + velocity, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        receiver = null;
+    }
+
+    private static final int PERCUSSION_CHANNEL = 9;
+}
@@ -0,0 +1,133 @@
+package org.audio;
+
+import org.midireading.MeterMap;
+import org.midireading.PackedMessage;
+import org.midireading.TempoMap;
+import org.songs.Song;
+
+import static javax.sound.midi.ShortMessage.NOTE_ON;
+
+// Where the metronome clicks: on every beat of the song's time signatures (see MeterMap), accented on bar lines,
+// and optionally on subdivisions of each beat
+// Each click is looked up in the tempo & meter maps instead of adding up beat lengths,
+// so clicks stay on the bar lines through tempo & signature changes, seeks & loops
+//
+// The visual metronome swings on the same beats (see beatAt), so what's seen & heard can't drift apart
+public final class Metronome {
+
+    public enum Subdivision {
+        BEATS, EIGHTHS, TRIPLETS, SIXTEENTHS;
+
+        // Clicks within a beat of some length (a compound beat already splits into 3 eighths)
+        int divisions(long beatTicks, int quarterTicks) {
+            return switch (this) {
+                case BEATS -> 1;
+                case EIGHTHS -> (int) Math.max(1, Math.round(beatTicks * 2.0 / quarterTicks));
+                case TRIPLETS -> 3;
+                case SIXTEENTHS -> (int) Math.max(1, Math.round(beatTicks * 4.0 / quarterTicks));
+            };
+        }
+
+        public Subdivision next() {
+            return values()[(ordinal() + 1) % values().length];
+        }
+    }
+
+    private final Song song;            // Maps are read fresh each time, a streamed song's can still grow
+    private Subdivision subdivision = Subdivision.BEATS;
+
+    private long nextTick;              // Next click
+    private long nextNanos;
+    private int nextMessage;
+
+    public Metronome(Song song) {
+        this.song = song;
+        position(0);
+    }
+
+    // Carries on from the first click at or after a song time
+    public void position(long songNanos) {
+        TempoMap tempoMap = song.getTempoMap();
+        long tick = tempoMap.nanosToTick(Math.max(0, songNanos));
+        // Ticks round down, the click on that tick could already be behind
+        if (tempoMap.tickToNanos(tick) < songNanos) tick++;
+        moveTo(tick);
+    }
+
+    // Moves on to the click after the next one
+    public void advance() {
+        moveTo(nextTick + 1);
+    }
+
+    private void moveTo(long tick) {
+        MeterMap meterMap = song.getMeterMap();
+        long beat = meterMap.tickToBeat(tick);
+        long beatStart = meterMap.beatToTick(beat);
+        long beatEnd = meterMap.beatToTick(beat + 1);
+        long beatTicks = meterMap.getBeatTicks(meterMap.getSegmentOfTick(beatStart));
+        int divisions = subdivision.divisions(beatTicks, meterMap.getQuarterTicks());
+
+        // First division of this beat not behind the tick, or else the next beat
+        nextTick = beatEnd;
+        for (int i = 0; i < divisions; i++) {
+            long divisionTick = beatStart + i * beatTicks / divisions;
+            if (divisionTick >= tick && divisionTick < beatEnd) {
+                nextTick = divisionTick;
+                break;
+            }
+        }
+        nextNanos = song.getTempoMap().tickToNanos(nextTick);
+
+        int key = meterMap.isBarStart(nextTick) ? ACCENT_KEY : CLICK_KEY;
+        int velocity = meterMap.beatStartTick(nextTick) == nextTick ? BEAT_VELOCITY : SUBDIVISION_VELOCITY;
+        nextMessage = PackedMessage.pack(NOTE_ON | 9, key, velocity);
+    }
+
+    // Subdivides each beat from the next click on
+    public void setSubdivision(Subdivision subdivision) {
+        this.subdivision = subdivision;
+        moveTo(nextTick);
+    }
+
+    public Subdivision getSubdivision() {
+        return subdivision;
+    }
+
+    // Song time of the next click
+    public long getNextNanos() {
+        return nextNanos;
+    }
+
+    // Packed NOTE_ON playing the next click
+    public int getNextMessage() {
+        return nextMessage;
+    }
+
+    // Both click sounds, the previous click is cut off before the next
+    public static final int ACCENT_KEY = 76;       // Hi wood block
+    public static final int CLICK_KEY = 77;        // Low wood block
+
+    /*=============== Beat Grid ===============*/
+
+    // Beats played by a song time, counting from 0 (1.5 is halfway through the second beat)
+    public static double beatAt(Song song, long songNanos) {
+        TempoMap tempoMap = song.getTempoMap();
+        MeterMap meterMap = song.getMeterMap();
+        long beat = meterMap.tickToBeat(tempoMap.nanosToTick(Math.max(0, songNanos)));
+        long startNanos = tempoMap.tickToNanos(meterMap.beatToTick(beat));
+        long endNanos = tempoMap.tickToNanos(meterMap.beatToTick(beat + 1));
+        return beat + Math.max(0, songNanos - startNanos) / (double) Math.max(1, endNanos - startNanos);
+    }
+
+    // Song time of the first beat at or after a song time
+    public static long nextBeatNanos(Song song, long songNanos) {
+        TempoMap tempoMap = song.getTempoMap();
+        MeterMap meterMap = song.getMeterMap();
+        long beat = meterMap.tickToBeat(tempoMap.nanosToTick(Math.max(0, songNanos)));
+        long beatNanos = tempoMap.tickToNanos(meterMap.beatToTick(beat));
+        return beatNanos >= songNanos ? beatNanos : tempoMap.tickToNanos(meterMap.beatToTick(beat + 1));
+    }
+
+    private static final int BEAT_VELOCITY = 127;
+    private static final int SUBDIVISION_VELOCITY = 80;
+}
@@ -0,0 +1,129 @@
+package org.audio;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+// Dedicated thread that plays MusicHandlers' events as they come due, instead of a UI timer
+// It parks until just before the next event, then busy-waits the last stretch (the spin window):
+// parkNanos alone can oversleep by a millisecond or more, spinning alone would burn a whole core
+//
+// One scheduler can play any number of songs at once (see PlaybackEngine): it waits for whichever is due first,
+// each against its own song clock, and drops a song once it's over
+public class MidiScheduler implements Runnable {
+
+    private final CopyOnWriteArrayList<MusicHandler> handlers = new CopyOnWriteArrayList<>();
+    private final long spinNanos;
+    private volatile Thread thread;     // The dispatch thread, each run stops as soon as it isn't this anymore
+
+    public MidiScheduler(MusicHandler music) {
+        this(music, DEFAULT_SPIN_NANOS);
+    }
+
+    public MidiScheduler(MusicHandler music, long spinNanos) {
+        this(spinNanos);
+        handlers.add(music);
+    }
+
+    // Starts out without any songs, see add()
+    public MidiScheduler(long spinNanos) {
+        this.spinNanos = spinNanos;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        Thread dispatch = Thread.ofPlatform().daemon().name("midi-dispatch").unstarted(this);
+        dispatch.setPriority(Thread.MAX_PRIORITY);
+        thread = dispatch;
+        dispatch.start();
+    }
+
+    public synchronized void stop() {
+        if (thread == null) return;
+        // A start() right after can't revive this run, it only ever plays while it's the current thread
+        LockSupport.unpark(thread);
+        thread = null;
+    }
+
+    // Plays another song from its next due event on
+    public void add(MusicHandler music) {
+        handlers.addIfAbsent(music);
+        wake();
+    }
+
+    public void remove(MusicHandler music) {
+        handlers.remove(music);
+    }
+
+    private synchronized void wake() {
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (isCurrent()) {
+            waitForNext();
+            if (!isCurrent()) return;
+            for (MusicHandler music : handlers) {
+                if (remainingNanos(music) > 0) continue;
+                try {
+                    music.loop();
+                } catch (RuntimeException e) {
+                    // One broken song shouldn't stop the others
+                    music.fail(e);
+                }
+                if (music.getCompletion().isDone())
+                    handlers.remove(music);
+            }
+        }
+    }
+
+    // Parks until the spin window before the next song is due, then spins the rest of the way
+    // (never parks longer than MAX_PARK_NANOS, so a streamed song's new events, speed changes & stop() are noticed)
+    private void waitForNext() {
+        long remaining;
+        while (isCurrent() && (remaining = soonestNanos()) > 0) {
+            if (remaining > spinNanos)
+                LockSupport.parkNanos(Math.min(remaining - spinNanos, MAX_PARK_NANOS));
+            else
+                Thread.onSpinWait();
+        }
+    }
+
+    private boolean isCurrent() {
+        return thread == Thread.currentThread();
+    }
+
+    // Time until the first song is due, Long.MAX_VALUE if none are
+    private long soonestNanos() {
+        long soonest = Long.MAX_VALUE;
+        for (MusicHandler music : handlers)
+            soonest = Math.min(soonest, remainingNanos(music));
+        return soonest;
+    }
+
+    // Time until a song is due, against its own clock (Long.MAX_VALUE while paused)
+    private static long remainingNanos(MusicHandler music) {
+        long dueNanos = music.getNextDueRealNanos();
+        return dueNanos == Long.MAX_VALUE ? Long.MAX_VALUE : dueNanos - music.getClock().getRealNanos();
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public long getSpinNanos() {
+        return spinNanos;
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    // Songs being played
+    public int size() {
+        return handlers.size();
+    }
+
+    // Busy-wait window, from -Ddrumvis.spinMicros (1 ms by default)
+    public static final long DEFAULT_SPIN_NANOS = Long.getLong("drumvis.spinMicros", 1000) * 1000;
+    private static final long MAX_PARK_NANOS = 5_000_000;
+}
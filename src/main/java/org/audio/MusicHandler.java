@@ -1,178 +1,559 @@
 package org.audio;
 
-import org.midireading.MIDIFormatter;
-import org.midireading.TrackSettings;
+import org.midireading.PackedMessage;
+import org.midireading.TempoMap;
+import org.songs.Song;
+import org.songs.SongCompiler;
 
 import javax.sound.midi.*;
-import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 
 import static javax.sound.midi.ShortMessage.*;
 
-public class MusicHandler {
+public class MusicHandler implements AutoCloseable {
 
-    private double slowFactor;
-
-    private final Sequence sequence;
+    private final Synthesizer synth;
     private final MidiChannel[] channels;
-    private final MIDIFormatter formatter;
-    private final TrackSettings[] trackSettings;
-    private final int[] trackProgress;
+    private final Receiver receiver;
+    private final InstrumentLoader instruments;
+    private DirectAudioOutput output;   // Only in low-latency mode
+    private final Song song;            // May still be streaming in (see SongStream)
+    private final PlaybackTimeline timeline;
+
+    private int cursor = 0;             // Next event of the timeline to play
+    private final ControllerIndex controllers = new ControllerIndex();
+    private final ActiveNotes activeNotes = new ActiveNotes();
+    private final DispatchStats stats = new DispatchStats();
+    private MidiScheduler scheduler;
+    private boolean ownScheduler;       // Started by start(), not shared with other songs
+    private final CompletableFuture<MusicHandler> completion = new CompletableFuture<>();
+
+    // Lookahead mode: events are handed to the synthesizer's Receiver this far ahead of time, with timestamps,
+    // and it plays them sample-accurately; the dispatch thread only wakes up about twice per lookahead window
+    private long lookaheadNanos = DEFAULT_LOOKAHEAD_NANOS;      // 0 -> play each event the moment it's due
+    private long nextBatchNanos;
+    private final SongClock clock;      // Shared with the visuals
+    private long synthOffsetNanos;      // Synthesizer clock minus the song clock's real time
+    private long nextSyncNanos;
+    private long lastSentMicros;        // Latest timestamp handed to the synthesizer
+
+    // A-B loop: the song clock keeps counting through repeats, the dispatch wraps ahead of time,
+    // and passOffsetNanos is how far the clock is ahead of the song time being dispatched
+    private volatile LoopRegion loopRegion;     // null -> no loop
+    private long passOffsetNanos;
+
+    private boolean drumsMuted;         // Backing track mode, channel 10 isn't played
+    private boolean metronomeOn = true;
+    private final Metronome metronome;  // Next click, merged into the timeline's events as they're dispatched
 
-    private TrackSettings curSettings;
-    private long curTick = 0;
-    private long nextNearestTick = Long.MAX_VALUE;
-    private long nextNanos = 0;
+    public static void main(String[] args) throws Exception {
+        MusicHandler music = new MusicHandler(args.length > 0 ? args[0] : "src/main/resources/BasketCase.mid");
+        music.start();
+        music.getCompletion().join();
+        System.out.println(music.getDispatchStats());
+        System.out.printf("Audio is %.1f ms behind the song clock, %.2f ms of drift left (%.2f ms corrected)%n",
+                music.getAudioOffsetNanos() / 1e6, music.getClock().getDriftNanos() / 1e6,
+                music.getClock().getCorrectionNanos() / 1e6);
+        System.out.printf("Loaded %d of %d instruments%n", music.getInstruments().getLoadedCount(),
+                music.getInstruments().getInstrumentCount());
+        if (music.getAudioOutput() != null)
+            System.out.println(music.getAudioOutput());
+        music.close();
+    }
 
-    int metronome = 0;
-    long nextBeatNanos = 0;
-    long deltaBeatNanos;
-    private static long songStartNanos;
+    public MusicHandler(String pathname) throws Exception {
+        this(new SongCompiler().stream(Path.of(pathname)));
+    }
+    public MusicHandler(Song song) throws Exception {
+        this(song, DirectAudioOutput.DEFAULT_BUFFER_FRAMES > 0 ?
+                DirectAudioOutput.open(DirectAudioOutput.DEFAULT_BUFFER_FRAMES) : null);
+    }
 
-    public static void main(String[] args) throws Exception {
-        MusicHandler music = new MusicHandler("src/main/resources/BasketCase.mid");
-        while (true) {
-            music.loop();
-            Thread.sleep(20);
-            music.endIfOver();
-        }
+    // Plays through a low-latency output (see DirectAudioOutput), or the synthesizer's own line if it's null
+    public MusicHandler(Song song, DirectAudioOutput output) throws Exception {
+        this(song, output != null ? output.getSynthesizer() : openSynthesizer(), output);
     }
 
-    public MusicHandler(String pathname) throws Exception {this(pathname, 1.0);}
-    public MusicHandler(String pathname, double slowFactor) throws Exception {
+    // Same, with a synthesizer opened ahead of time (e.g. while the song loads, see Startup)
+    public MusicHandler(Song song, Synthesizer synth, DirectAudioOutput output) throws Exception {
+        this(song, synth, new SongClock());
+        this.output = output;
+        if (output != null)
+            output.start();
+    }
 
-        this.slowFactor = slowFactor;
+    // Plays through an already open synthesizer (e.g. one rendering to a stream, see OfflineRenderer),
+    // following a song clock that starts as soon as the song is ready
+    public MusicHandler(Song song, Synthesizer synth, SongClock clock) throws Exception {
 
-        // Set up midi file
-        sequence = MidiSystem.getSequence(new File(pathname));
-        int numTracks = sequence.getTracks().length;
-        formatter = MIDIFormatter.getInstance();
-        formatter.setupFormatter(sequence);
+        // Song is already merged into one timeline
+        this.song = song;
+        timeline = song.getTimeline();
 
         // Set up synthesizer
-        Synthesizer synth = MidiSystem.getSynthesizer();
-        synth.open();
-        synth.loadAllInstruments(synth.getDefaultSoundbank());
+        this.synth = synth;
         channels = synth.getChannels();
+        receiver = synth.getReceiver();
+
+        // A streamed song only has to be decoded a little ahead before it can start
+        song.awaitReady(PRELOAD_NANOS);
+        controllers.update(timeline);
+
+        // Only the instruments the song plays are loaded, what the rest of a streamed song needs once it's decoded
+        instruments = new InstrumentLoader(synth);
+        instruments.update(timeline);
+        song.getCompletion().thenRun(() -> instruments.update(timeline));
+        if (LOAD_ALL_INSTRUMENTS)
+            instruments.loadRestInBackground();
+
+        metronome = new Metronome(song);
+        this.clock = clock;
+        clock.set(0);
+        synthOffsetNanos = synth.getMicrosecondPosition() * 1000 - clock.getRealNanos();
+    }
 
-        // Initialize settings for each track
-        trackSettings = new TrackSettings[numTracks];
-        for (int i = 0; i < numTracks; i++)
-            trackSettings[i] = new TrackSettings();
-        trackProgress = new int[numTracks];
+    // Plays the song on its own dispatch thread (see MidiScheduler)
+    public void start() {
+        start(MidiScheduler.DEFAULT_SPIN_NANOS);
+    }
 
-        songStartNanos = System.nanoTime();
+    // Sets how far ahead events are sent to the synthesizer (0 turns lookahead off), before start()
+    public void setLookahead(long lookaheadNanos) {
+        this.lookaheadNanos = lookaheadNanos;
     }
 
-    public void loop() {
+    public void setDrumsMuted(boolean drumsMuted) {
+        this.drumsMuted = drumsMuted;
+    }
 
-        // Don't do anything until the next nanosecond
-        if (getSongNanos() > nextNanos) {
+    public void setMetronome(boolean metronomeOn) {
+        this.metronomeOn = metronomeOn;
+    }
 
-            // Iterate through tracks
-            for (int i = 0; i < sequence.getTracks().length; i++) {
-                Track track = sequence.getTracks()[i];
+    // Clicks on every beat, or on 8ths, triplets or 16ths too
+    public synchronized void setSubdivision(Metronome.Subdivision subdivision) {
+        metronome.setSubdivision(subdivision);
+    }
 
-                curSettings = trackSettings[i];
-                formatter.setTrackSettings(curSettings);
+    public Metronome.Subdivision getSubdivision() {
+        return metronome.getSubdivision();
+    }
 
-                // Play each event at curTick in parallel
-                // Advance forward until next event is on the next tick OR the end of track
-                for (int j = trackProgress[i]; j < track.size(); j++) {
-                    MidiEvent event = track.get(j);
+    public synchronized void start(long spinNanos) {
+        if (scheduler == null) {
+            scheduler = new MidiScheduler(this, spinNanos);
+            ownScheduler = true;
+        }
+        scheduler.start();
+    }
 
-                    if (event.getTick() > curTick) {
-                        nextNearestTick = Math.min(nextNearestTick, event.getTick());
-                        trackProgress[i] = j;
-                        break;
-                    }
+    // Plays the song on a scheduler shared with other songs (see PlaybackEngine)
+    public synchronized void start(MidiScheduler shared) {
+        stop();
+        scheduler = shared;
+        ownScheduler = false;
+        shared.add(this);
+    }
 
-                    // Otherwise, it's the current tick
-                    processMidiEvent(event);
-                }
+    // Stops dispatching, whatever was already sent to the synthesizer still plays
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        if (ownScheduler) scheduler.stop();
+        else scheduler.remove(this);
+        scheduler = null;
+    }
+
+    // Stops, then closes the synthesizer & its output; a song that wasn't over never completes
+    @Override
+    public void close() {
+        stop();
+        if (output != null) output.close();
+        else synth.close();
+        completion.cancel(false);
+    }
+
+    // Opens the default synthesizer on its own line, without loading any instruments yet
+    public static Synthesizer openSynthesizer() throws MidiUnavailableException {
+        Synthesizer synth = MidiSystem.getSynthesizer();
+        AudioSynth.open(synth, AudioSynth.SONG_INSTRUMENTS_ONLY);
+        return synth;
+    }
+
+    public void loop() {
+        // Keep the song clock on the synthesizer's, which follows the audio device
+        long realNanos = clock.getRealNanos();
+        if (realNanos >= nextSyncNanos) {
+            clock.sync(synth.getMicrosecondPosition() * 1000, synthOffsetNanos);
+            nextSyncNanos = realNanos + SYNC_INTERVAL_NANOS;
+        }
+        dispatchUntil(clock.getSongNanos());
+    }
+
+    // Plays every event that is due at a song clock time (or about to be, with lookahead), in timeline order
+    // The clock keeps counting through loop repeats, so with a loop this is past the song time
+    public synchronized void dispatchUntil(long clockNanos) {
+        // The lookahead is real time, so it covers more of the song when playing faster
+        long horizonNanos = clockNanos + (long) (lookaheadNanos * clock.getSpeed());
+
+        // Wrap every time the horizon passes the loop end: the repeat is queued before it's due, so there's no gap
+        LoopRegion region = loopRegion;
+        while (region != null && horizonNanos - passOffsetNanos >= region.endNanos()) {
+            dispatchSong(clockNanos, region.endNanos() - 1);
+            wrap(region);
+        }
+        dispatchSong(clockNanos, horizonNanos - passOffsetNanos);
+        nextBatchNanos = clockNanos + (horizonNanos - clockNanos) / 2;
+
+        if (!completion.isDone() && isOver())
+            completion.complete(this);
+    }
+
+    // Plays events & clicks up to a song time of the current pass, merged in time order
+    private void dispatchSong(long clockNanos, long horizonNanos) {
+        while (true) {
+            boolean eventDue = cursor < timeline.size() && timeline.getNanos(cursor) <= horizonNanos;
+            long clickNanos = metronome.getNextNanos();
+            if (clickNanos <= horizonNanos && (!eventDue || clickNanos < timeline.getNanos(cursor))) {
+                click();
+                continue;
             }
+            if (!eventDue) return;
+
+            long dueNanos = timeline.getNanos(cursor) + passOffsetNanos;
+            // Events sent ahead are timed by the synthesizer, they're only late if they were sent late
+            stats.record(cursor, Math.max(0, clockNanos - dueNanos));
+            int message = timeline.getMessage(cursor++);
+            if (!drumsMuted || PackedMessage.getChannel(message) != 9)
+                send(mixVelocity(message), dueNanos);
+        }
+    }
 
-            // After all tracks done, update timings
-            curTick = nextNearestTick;
-            nextNanos = (long) (slowFactor * trackSettings[0].tickToNanos(nextNearestTick));
-            deltaBeatNanos = (long) (slowFactor * trackSettings[0].tickToNanos(sequence.getResolution()));
+    // Sends the dispatch from the loop end back to its start, timed for the moment the clock reaches the end:
+    // whatever is still sounding is released and the controllers go back to how they were at the loop start
+    private void wrap(LoopRegion region) {
+        long wrapNanos = region.endNanos() + passOffsetNanos;
+        activeNotes.releaseAll(message -> send(message, wrapNanos));
+        controllers.update(timeline);
+        cursor = timeline.indexAt(region.startNanos());
+        controllers.restore(timeline, cursor, message -> send(message, wrapNanos));
+        passOffsetNanos += region.getLengthNanos();
+        metronome.position(region.startNanos());
+    }
 
-            // Reset next tick to be 'infinitely' far away
-            // (will be overwritten by first Math.min call)
-            nextNearestTick = Long.MAX_VALUE;
+    // Plays the metronome's next click, timed like any other event
+    private void click() {
+        if (metronomeOn) {
+            long dueNanos = metronome.getNextNanos() + passOffsetNanos;
+            send(PackedMessage.pack(NOTE_OFF | 9, Metronome.ACCENT_KEY, 64), dueNanos);
+            send(PackedMessage.pack(NOTE_OFF | 9, Metronome.CLICK_KEY, 64), dueNanos);
+            send(metronome.getNextMessage(), dueNanos);
         }
+        metronome.advance();
+    }
+
+    // Plays a packed message right away, or in lookahead mode has the synthesizer play it at a song clock time
+    private void send(int message, long dueNanos) {
+        long realNanos = clock.realNanosAt(dueNanos);
+        sendAt(message, realNanos == Long.MAX_VALUE ? quietMicros() : (realNanos + synthOffsetNanos) / 1000);
+    }
 
-        // Call metronome
-        if (getSongNanos() > nextBeatNanos) {
-            click();
+    // Same, at a time of the synthesizer's clock
+    private void sendAt(int message, long synthMicros) {
+        activeNotes.track(message);
+        if (lookaheadNanos == 0) {
+            processMidiEvent(message);
+            return;
+        }
+        try {
+            ShortMessage shortMessage = new ShortMessage(PackedMessage.getCommand(message), PackedMessage.getChannel(message),
+                    PackedMessage.getData1(message), PackedMessage.getData2(message));
+            receiver.send(shortMessage, synthMicros);
+            lastSentMicros = Math.max(lastSentMicros, synthMicros);
+        } catch (InvalidMidiDataException e) {
+            // Packed channel messages always hold valid data bytes
+            throw new IllegalStateException(e);
         }
     }
 
-    public void click() {
-        channels[9].noteOff(76);
-        channels[9].noteOff(77);
-        channels[9].noteOn(metronome % 4 == 0 ? 76:77, 127);
+    // Synthesizer time once everything already sent to it has played (right now, without lookahead)
+    private long quietMicros() {
+        return Math.max(synth.getMicrosecondPosition(), lastSentMicros + 1);
+    }
 
-        nextBeatNanos += deltaBeatNanos;
-        metronome++;
+    /*=============== Pause & Seek ===============*/
+
+    // Stops the song clock and releases every sounding note
+    // (with lookahead, events already handed to the synthesizer still play out first, then get released)
+    public synchronized void pause() {
+        if (clock.isPaused()) return;
+        clock.pause();
+        long quietMicros = quietMicros();
+        activeNotes.releaseAll(message -> {
+            if (lookaheadNanos > 0) processMidiEvent(message);
+            sendAt(message, quietMicros);
+        });
     }
 
-    public void endIfOver() {
-        long endTick = sequence.getTickLength();
-        long endNanos = trackSettings[0].tickToNanos(endTick);
+    // Carries on from where pause() stopped
+    public synchronized void resume() {
+        if (!clock.isPaused()) return;
+        seek(getSongNanos());
+        clock.resume();
+    }
 
-        if (getSongNanos() > endNanos + 2L * NANOS_PER_SEC)
-            System.exit(0);
+    public boolean isPaused() {
+        return clock.isPaused();
     }
 
-    // Processes a MidiEvent
-    public void processMidiEvent(MidiEvent event) {
+    // Changes the playback speed (1 = as written) right away, without rebuilding anything:
+    // event & hit times stay in song time, only the song clock's rate changes
+    public synchronized void setSpeed(double speed) {
+        clock.setSpeed(speed);
+    }
 
-        // Update track settings & get channel
-        MidiMessage message = event.getMessage();
-        curSettings.update(message);
-        MidiChannel curChannel = channels[curSettings.getChannel()];
+    public double getSpeed() {
+        return clock.getSpeed();
+    }
 
-        // If it's a ShortMessage, do that stuff
-        if (message instanceof ShortMessage shortMessage) {
-            double velocityMult = shortMessage.getChannel() == 9 ?
-                    0.85 : 0.7;
-            int data1 = shortMessage.getData1();
-            int data2 = shortMessage.getData2();
-            switch (shortMessage.getCommand()) {
-                case NOTE_ON:
-                    curChannel.noteOn(data1, (int)(data2 * velocityMult));
-                    break;
+    // Jumps to a song time in O(log n): the next event is found by binary search,
+    // sounding notes are released and every controller & program is put back the way it was at that time
+    // Returns the time actually jumped to, a streamed song can't go past what's decoded so far
+    public synchronized long seek(long timelineNanos) {
+        timelineNanos = Math.max(0, Math.min(timelineNanos, timeline.getReadyNanos()));
+        if (song.isComplete())
+            timelineNanos = Math.min(timelineNanos, song.getEndNanos());
+        // Past the loop end lands on the same spot within the loop
+        LoopRegion region = loopRegion;
+        if (region != null && timelineNanos >= region.endNanos())
+            timelineNanos = region.wrap(timelineNanos);
+
+        // With lookahead, the song picks up once whatever the synthesizer already has queued is done
+        long startMicros = quietMicros();
+        activeNotes.releaseAll(message -> sendAt(message, startMicros));
+        controllers.update(timeline);
+        cursor = timeline.indexAt(timelineNanos);
+        controllers.restore(timeline, cursor, message -> sendAt(message, startMicros));
+        metronome.position(timelineNanos);
+
+        // Move the song clock, reaching the new time when the synthesizer starts playing it
+        clock.set(timelineNanos, startMicros * 1000 - synthOffsetNanos);
+        passOffsetNanos = 0;
+        nextBatchNanos = timelineNanos;
+        return timelineNanos;
+    }
 
-                case NOTE_OFF:
-                    curChannel.noteOff(data1, data2);
-                    break;
+    /*=============== A-B Loop ===============*/
 
-                case POLY_PRESSURE:
-                    curChannel.setPolyPressure(data1, data2);
-                    break;
+    // Song times a loop repeats between, the end isn't played (it's where the start plays again)
+    public record LoopRegion(long startNanos, long endNanos) {
+        public long getLengthNanos() {
+            return endNanos - startNanos;
+        }
 
-                case CHANNEL_PRESSURE:
-                    curChannel.setChannelPressure(data1);
+        // Song time a song clock time past the loop start stands for
+        long wrap(long clockNanos) {
+            return clockNanos < endNanos ? clockNanos : startNanos + (clockNanos - startNanos) % getLengthNanos();
+        }
+    }
 
-                case CONTROL_CHANGE:
-                    curChannel.controlChange(data1, data2);
-                    break;
+    // Repeats the song between two song times until clearLoop()
+    // (a streamed song can only loop over what's decoded so far)
+    public synchronized void setLoop(long startNanos, long endNanos) {
+        startNanos = Math.max(0, startNanos);
+        endNanos = Math.min(endNanos, timeline.getReadyNanos());
+        if (song.isComplete())
+            endNanos = Math.min(endNanos, song.getEndNanos());
+        if (endNanos <= startNanos)
+            throw new IllegalArgumentException("Loop must end after it starts");
+        rebase(new LoopRegion(startNanos, endNanos));
+    }
 
-                case PROGRAM_CHANGE:
-                    curChannel.programChange(data1);
-                    break;
+    // Repeats whole bars (counting from 0), from the start of one to the start of another
+    public void setLoopBars(int startBar, int endBar) {
+        TempoMap tempoMap = song.getTempoMap();
+        setLoop(tempoMap.tickToNanos(song.getMeterMap().barToTick(startBar)),
+                tempoMap.tickToNanos(song.getMeterMap().barToTick(endBar)));
+    }
 
-                case PITCH_BEND:
-                    curChannel.setPitchBend(data1 + (data2 << 7));
-            }
+    public synchronized void clearLoop() {
+        rebase(null);
+    }
+
+    // Changes the loop, and brings the song clock back to the song time it stands for
+    // That's seamless unless the dispatch has already wrapped ahead of the clock, or the song is now past the loop
+    private void rebase(LoopRegion region) {
+        long clockNanos = clock.getSongNanos();
+        long songNanos = toSongNanos(clockNanos);
+        long aheadNanos = passOffsetNanos - (clockNanos - songNanos);
+        loopRegion = region;
+        if (region != null && songNanos >= region.endNanos()) {
+            seek(region.startNanos());
+            return;
+        }
+        if (aheadNanos != 0) {
+            seek(songNanos);
+            return;
+        }
+        clock.shift(songNanos - clockNanos);
+        passOffsetNanos = 0;
+    }
+
+    // Song time a song clock time stands for, repeating the loop
+    private long toSongNanos(long clockNanos) {
+        LoopRegion region = loopRegion;
+        return region == null ? clockNanos : region.wrap(clockNanos);
+    }
+
+    public LoopRegion getLoop() {
+        return loopRegion;
+    }
+
+    // How many times what's being heard has gone back to the loop start
+    public long getAudibleLoopPass() {
+        LoopRegion region = loopRegion;
+        long clockNanos = clock.songNanosAt(clock.getRealNanos() - getLatencyNanos());
+        if (region == null || clockNanos < region.endNanos()) return 0;
+        return 1 + (clockNanos - region.endNanos()) / region.getLengthNanos();
+    }
+
+    // Jumps to the start of a bar (counting from 0)
+    public long seekToBar(int bar) {
+        return seek(song.getTempoMap().tickToNanos(song.getMeterMap().barToTick(bar)));
+    }
+
+    // Bar (counting from 0) playing right now
+    public int getBar() {
+        return song.getMeterMap().tickToBar(song.getTempoMap().nanosToTick(Math.max(0, getSongNanos())));
+    }
+
+    // Drums are mixed a little louder than the rest of the band
+    private static int mixVelocity(int message) {
+        if (PackedMessage.getCommand(message) != NOTE_ON)
+            return message;
+        double velocityMult = PackedMessage.getChannel(message) == 9 ?
+                0.85 : 0.7;
+        return PackedMessage.pack(PackedMessage.getStatus(message), PackedMessage.getData1(message),
+                (int) (PackedMessage.getData2(message) * velocityMult));
+    }
+
+    // Real time (of the song clock's time source) at which loop() next has something to do:
+    // the next event or metronome click, or with lookahead, the next batch
+    // (Long.MAX_VALUE while paused)
+    public synchronized long getNextDueRealNanos() {
+        long due = metronome.getNextNanos();
+        if (cursor < timeline.size())
+            due = Math.min(due, timeline.getNanos(cursor));
+        LoopRegion region = loopRegion;
+        if (region != null)
+            due = Math.min(due, region.endNanos());
+        else if (song.isComplete() && !completion.isDone())
+            due = Math.min(due, song.getEndNanos() + END_TAIL_NANOS + 1);
+        due += passOffsetNanos;
+        if (lookaheadNanos == 0)
+            return clock.realNanosAt(due);
+        long realDue = clock.realNanosAt(due);
+        return Math.max(clock.realNanosAt(nextBatchNanos), realDue == Long.MAX_VALUE ? realDue : realDue - lookaheadNanos);
+    }
+
+    // The song has ended & its last notes have rung out
+    public boolean isOver() {
+        return song.isComplete() && getSongNanos() > song.getEndNanos() + END_TAIL_NANOS;
+    }
+
+    // Completes when the song is over (see isOver), or fails if playing it did
+    // Whoever plays the song decides what happens next, e.g. the Visualizer exits
+    public CompletableFuture<MusicHandler> getCompletion() {
+        return completion;
+    }
+
+    // Playing the song failed on the dispatch thread
+    void fail(Throwable e) {
+        completion.completeExceptionally(e);
+    }
+
+    // Plays a packed channel message (see PackedMessage) on its channel
+    public void processMidiEvent(int message) {
+        MidiChannel curChannel = channels[PackedMessage.getChannel(message)];
+
+        int data1 = PackedMessage.getData1(message);
+        int data2 = PackedMessage.getData2(message);
+        switch (PackedMessage.getCommand(message)) {
+            case NOTE_ON:
+                curChannel.noteOn(data1, data2);
+                break;
+
+            case NOTE_OFF:
+                curChannel.noteOff(data1, data2);
+                break;
+
+            case POLY_PRESSURE:
+                curChannel.setPolyPressure(data1, data2);
+                break;
+
+            case CHANNEL_PRESSURE:
+                curChannel.setChannelPressure(data1);
+                break;
+
+            case CONTROL_CHANGE:
+                curChannel.controlChange(data1, data2);
+                break;
+
+            case PROGRAM_CHANGE:
+                curChannel.programChange(data1);
+                break;
+
+            case PITCH_BEND:
+                curChannel.setPitchBend(data1 + (data2 << 7));
         }
-        
     }
 
     // Returns the current nanoseconds relative to the start of the song
     public long getSongNanos() {
-        return System.nanoTime() - songStartNanos;
+        return toSongNanos(clock.getSongNanos());
+    }
+
+    // What's being heard right now: events are played by the song clock,
+    // but reach the speakers only after the output's latency
+    public long getAudibleSongNanos() {
+        return toSongNanos(clock.songNanosAt(clock.getRealNanos() - getLatencyNanos()));
+    }
+
+    // Output latency, from rendering a sound to hearing it
+    public long getLatencyNanos() {
+        return output != null ? output.getLatencyNanos() : synth.getLatency() * 1000;
+    }
+
+    // How far what's heard trails the song clock: the output latency plus any drift not corrected yet
+    public long getAudioOffsetNanos() {
+        return getLatencyNanos() - clock.getDriftNanos();
+    }
+
+    // Song clock shared by the audio & the visuals
+    public SongClock getClock() {
+        return clock;
+    }
+
+    // Lateness of every event played so far
+    public DispatchStats getDispatchStats() {
+        return stats;
+    }
+
+    // Low-latency output, or null when the synthesizer plays through its own line
+    public DirectAudioOutput getAudioOutput() {
+        return output;
+    }
+
+    public InstrumentLoader getInstruments() {
+        return instruments;
     }
 
     private static final int NANOS_PER_SEC = 1_000_000_000;
+    private static final long PRELOAD_NANOS = 2L * NANOS_PER_SEC;
+    private static final long END_TAIL_NANOS = 2L * NANOS_PER_SEC;
+    private static final long SYNC_INTERVAL_NANOS = 100_000_000;
+    // From -Ddrumvis.lookaheadMillis (off by default)
+    private static final long DEFAULT_LOOKAHEAD_NANOS = Long.getLong("drumvis.lookaheadMillis", 0) * 1_000_000;
+    // From -Ddrumvis.loadAllInstruments, loads the rest of the soundbank in the background after the song's instruments
+    private static final boolean LOAD_ALL_INSTRUMENTS = Boolean.getBoolean("drumvis.loadAllInstruments");
 }
\ No newline at end of file
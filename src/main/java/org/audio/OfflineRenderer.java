@@ -0,0 +1,196 @@
+package org.audio;
+
+import org.midireading.MidiDump;
+import org.songs.Song;
+import org.songs.SongCompiler;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// Renders songs to WAV files as fast as the CPU allows, for practice backing tracks:
+//   OfflineRenderer [-o folder] [-speed 0.75,1] [-no-drums | -both] [-click] [-threads n] files or folders...
+// Each render plays the song through MusicHandler (same events, same metronome) into a synthesizer
+// in stream mode, a block at a time, so it needs
+//   --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED
+public class OfflineRenderer {
+
+    // What to render a song as
+    public record Options(double speed, boolean drums, boolean click, float sampleRate) {
+
+        // e.g. Numb-x0.75-nodrums.wav
+        String fileName(Path midiPath) {
+            String name = midiPath.getFileName().toString();
+            name = name.substring(0, name.lastIndexOf('.'));
+            if (speed != 1) name += "-x" + speed;
+            if (!drums) name += "-nodrums";
+            if (click) name += "-click";
+            return name + ".wav";
+        }
+    }
+
+    // How long a render took compared to the audio it made
+    public record Result(Path wav, double audioSeconds, double renderSeconds) {
+        public double getRealTimeFactor() {
+            return audioSeconds / renderSeconds;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path outDir = Path.of(".");
+        List<Double> speeds = List.of(1.0);
+        boolean withDrums = true, withoutDrums = false, click = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-o" -> outDir = Path.of(args[++i]);
+                case "-speed" -> speeds = Stream.of(args[++i].split(",")).map(Double::parseDouble).toList();
+                case "-no-drums" -> { withDrums = false; withoutDrums = true; }
+                case "-both" -> withoutDrums = true;
+                case "-click" -> click = true;
+                case "-threads" -> threads = Integer.parseInt(args[++i]);
+                default -> inputs.add(Path.of(args[i]));
+            }
+        }
+        if (inputs.isEmpty())
+            inputs.add(Path.of("src/main/resources"));
+
+        List<Path> files = new ArrayList<>();
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> walk = Files.walk(input)) {
+                    files.addAll(walk.filter(MidiDump::isMidiFile).sorted().toList());
+                }
+            } else
+                files.add(input);
+        }
+        Files.createDirectories(outDir);
+
+        SongCompiler compiler = new SongCompiler();
+        long start = System.nanoTime();
+        List<Future<Result>> results = new ArrayList<>();
+        try (ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+            for (Path file : files) {
+                // Loaded once & shared by every variant (a loaded song is read-only), ahead of them in the queue
+                Future<Song> song = pool.submit(() -> compiler.load(file));
+                for (double speed : speeds) {
+                    for (boolean drums : new boolean[] {true, false}) {
+                        if (drums ? !withDrums : !withoutDrums) continue;
+                        Options options = new Options(speed, drums, click, SAMPLE_RATE);
+                        Path wav = outDir.resolve(options.fileName(file));
+                        results.add(pool.submit(() -> render(song.get(), wav, options)));
+                    }
+                }
+            }
+        }
+
+        double audioSeconds = 0;
+        for (Future<Result> future : results) {
+            try {
+                Result result = future.get();
+                audioSeconds += result.audioSeconds();
+                System.err.printf("%s: %.1fs of audio in %.2fs (%.1fx real time)%n", result.wav(),
+                        result.audioSeconds(), result.renderSeconds(), result.getRealTimeFactor());
+            } catch (Exception e) {
+                System.err.println("Render failed: " + e.getCause());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Rendered %d files, %.1fs of audio in %.2fs with %d threads (%.1fx real time)%n",
+                results.size(), audioSeconds, seconds, threads, audioSeconds / seconds);
+    }
+
+    // Renders one song to a WAV file
+    public static Result render(Song song, Path wav, Options options) throws Exception {
+        long start = System.nanoTime();
+        song.getCompletion().join();
+
+        AudioFormat format = AudioSynth.defaultFormat(options.sampleRate());
+        Synthesizer synth = MidiSystem.getSynthesizer();
+        AudioInputStream stream = AudioSynth.openStream(synth, format, AudioSynth.SONG_INSTRUMENTS_ONLY);
+        try (FileChannel out = FileChannel.open(wav, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The song clock follows the rendered audio, not the wall clock
+            SongClock clock = new SongClock(() -> synth.getMicrosecondPosition() * 1000);
+            MusicHandler music = new MusicHandler(song, synth, clock);
+            music.setSpeed(options.speed());
+            music.setDrumsMuted(!options.drums());
+            music.setMetronome(options.click());
+
+            // Every block's events are sent (timestamped) before the block is rendered
+            int frameSize = format.getFrameSize();
+            long blockNanos = BLOCK_FRAMES * NANOS_PER_SEC / (long) options.sampleRate();
+            music.setLookahead(blockNanos);
+            long endNanos = (long) (song.getEndNanos() / options.speed()) + TAIL_NANOS;
+            long totalFrames = (long) Math.ceil(endNanos / 1e9 * options.sampleRate());
+
+            out.position(WAV_HEADER_BYTES);
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_FRAMES * frameSize);
+            for (long frame = 0; frame < totalFrames; frame += BLOCK_FRAMES) {
+                music.dispatchUntil(clock.getSongNanos());
+                int bytes = (int) Math.min(BLOCK_FRAMES, totalFrames - frame) * frameSize;
+                readFully(stream, block.array(), bytes);
+                block.clear().limit(bytes);
+                while (block.hasRemaining())
+                    out.write(block);
+            }
+
+            long dataBytes = totalFrames * frameSize;
+            out.write(wavHeader(format, dataBytes), 0);
+            double renderSeconds = (System.nanoTime() - start) / 1e9;
+            return new Result(wav, totalFrames / (double) options.sampleRate(), renderSeconds);
+        } finally {
+            synth.close();
+        }
+    }
+
+    private static void readFully(AudioInputStream stream, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = stream.read(buffer, read, length - read);
+            if (n < 0) throw new IOException("Synthesizer stream ended early");
+            read += n;
+        }
+    }
+
+    // Canonical 44-byte RIFF/WAVE header for PCM data
+    private static ByteBuffer wavHeader(AudioFormat format, long dataBytes) {
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int channels = format.getChannels();
+        int sampleRate = (int) format.getSampleRate();
+        int frameSize = format.getFrameSize();
+        header.putInt(RIFF).putInt((int) Math.min(0xFFFFFFFFL, 36 + dataBytes)).putInt(WAVE)
+                .putInt(FMT).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * frameSize).putShort((short) frameSize)
+                .putShort((short) format.getSampleSizeInBits())
+                .putInt(DATA).putInt((int) Math.min(0xFFFFFFFFL, dataBytes));
+        return header.flip();
+    }
+
+    private static final float SAMPLE_RATE = 44_100;
+    private static final int BLOCK_FRAMES = 512;
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+    private static final long TAIL_NANOS = 2 * NANOS_PER_SEC;      // Lets the last notes ring out
+    private static final int WAV_HEADER_BYTES = 44;
+
+    // Chunk ids, little-endian
+    private static final int RIFF = 0x46464952;
+    private static final int WAVE = 0x45564157;
+    private static final int FMT = 0x20746D66;
+    private static final int DATA = 0x61746164;
+}
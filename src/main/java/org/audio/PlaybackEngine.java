@@ -0,0 +1,114 @@
+package org.audio;
+
+import org.songs.Song;
+import org.songs.SongCache;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Headless playback of any number of songs at once in one process, e.g. many practice sessions on one server
+// Every session (see PlaybackSession) has its own synthesizer, song clock & state, songs are shared through
+// a SongCache, and one scheduler thread dispatches every live session (see MidiScheduler)
+//
+//   try (PlaybackEngine engine = new PlaybackEngine()) {
+//       PlaybackSession session = engine.loadStream(path, AudioSynth.defaultFormat(44100));
+//       session.onComplete(done -> ..., failure -> ...).start();
+//       session.getAudioStream().transferTo(client);
+//   }
+public class PlaybackEngine implements AutoCloseable {
+
+    private final SongCache songs;
+    private final boolean ownSongs;     // Closed with the engine
+    private final MidiScheduler scheduler;
+    private final Set<PlaybackSession> sessions = ConcurrentHashMap.newKeySet();
+
+    public PlaybackEngine() {
+        this(new SongCache(DEFAULT_CACHE_BYTES), true, MidiScheduler.DEFAULT_SPIN_NANOS);
+    }
+
+    // Shares songs with whatever else uses the cache
+    public PlaybackEngine(SongCache songs, long spinNanos) {
+        this(songs, false, spinNanos);
+    }
+
+    private PlaybackEngine(SongCache songs, boolean ownSongs, long spinNanos) {
+        this.songs = songs;
+        this.ownSongs = ownSongs;
+        scheduler = new MidiScheduler(spinNanos);
+        scheduler.start();
+    }
+
+    // Loads a song to play live through the default synthesizer on its own line
+    public PlaybackSession load(Path midiPath) throws Exception {
+        return load(songs.stream(midiPath), MusicHandler.openSynthesizer());
+    }
+
+    // Loads a song to play live through an already open synthesizer, which the session then owns
+    public PlaybackSession load(Song song, Synthesizer synth) throws Exception {
+        try {
+            return opened(new PlaybackSession(this, song, synth));
+        } catch (Exception e) {
+            synth.close();
+            throw e;
+        }
+    }
+
+    // Loads a song to render into an audio stream, as fast as the stream is read
+    public PlaybackSession loadStream(Path midiPath, AudioFormat format) throws Exception {
+        return loadStream(songs.stream(midiPath), format);
+    }
+
+    public PlaybackSession loadStream(Song song, AudioFormat format) throws Exception {
+        Synthesizer synth = MidiSystem.getSynthesizer();
+        AudioInputStream audio = AudioSynth.openStream(synth, format, AudioSynth.SONG_INSTRUMENTS_ONLY);
+        try {
+            return opened(new PlaybackSession(this, song, synth, audio));
+        } catch (Exception e) {
+            synth.close();
+            throw e;
+        }
+    }
+
+    private PlaybackSession opened(PlaybackSession session) {
+        sessions.add(session);
+        return session;
+    }
+
+    // Forgets a session that was closed
+    void closed(PlaybackSession session) {
+        sessions.remove(session);
+    }
+
+    // Closes every session, then stops the scheduler
+    @Override
+    public void close() {
+        for (PlaybackSession session : List.copyOf(sessions))
+            session.close();
+        scheduler.stop();
+        if (ownSongs)
+            songs.close();
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    // Sessions loaded & not closed yet
+    public List<PlaybackSession> getSessions() {
+        return List.copyOf(sessions);
+    }
+
+    public MidiScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public SongCache getSongCache() {
+        return songs;
+    }
+
+    private static final long DEFAULT_CACHE_BYTES = 256L << 20;
+}
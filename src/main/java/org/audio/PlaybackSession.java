@@ -0,0 +1,170 @@
+package org.audio;
+
+import org.songs.Song;
+
+import javax.sound.midi.Synthesizer;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+// One song being played by a PlaybackEngine, with an explicit lifecycle:
+//   LOADED -start-> PLAYING -pause-> PAUSED -start-> PLAYING ... -stop-> STOPPED (back at the start) -close-> CLOSED
+// A session that plays to the end is FINISHED and calls its completion callbacks (nothing exits the process),
+// after that it can only be closed
+//
+// Live sessions play through their own synthesizer, dispatched by the engine's shared scheduler
+// Stream sessions render into an AudioInputStream instead (e.g. to send to a client): there's no real-time
+// dispatch at all, each read first plays the events due by the end of the audio it returns, like OfflineRenderer
+public class PlaybackSession implements AutoCloseable {
+
+    public enum State { LOADED, PLAYING, PAUSED, STOPPED, FINISHED, CLOSED }
+
+    private final PlaybackEngine engine;
+    private final Song song;
+    private final MusicHandler music;
+    private final AudioStream stream;   // null for a live session
+    private volatile State state = State.LOADED;
+
+    // Live session, the synthesizer is already open on its own line (see MusicHandler.openSynthesizer)
+    PlaybackSession(PlaybackEngine engine, Song song, Synthesizer synth) throws Exception {
+        this.engine = engine;
+        this.song = song;
+        music = new MusicHandler(song, synth, new SongClock());
+        stream = null;
+        loaded();
+    }
+
+    // Stream session, the synthesizer is already open in stream mode (see AudioSynth.openStream)
+    PlaybackSession(PlaybackEngine engine, Song song, Synthesizer synth, AudioInputStream audio) throws Exception {
+        this.engine = engine;
+        this.song = song;
+        // The song clock follows the rendered audio, not the wall clock
+        music = new MusicHandler(song, synth, new SongClock(() -> synth.getMicrosecondPosition() * 1000));
+        stream = new AudioStream(audio);
+        music.setLookahead(stream.blockNanos);
+        loaded();
+    }
+
+    // Waits at the very start until start()
+    private void loaded() {
+        music.pause();
+        music.getCompletion().whenComplete((ignored, failure) -> {
+            if (failure == null) state = State.FINISHED;
+        });
+    }
+
+    /*=============== Lifecycle ===============*/
+
+    // Starts playing, or carries on after pause() or stop()
+    public synchronized void start() {
+        checkOpen();
+        if (state == State.FINISHED) throw new IllegalStateException("Session is finished, load the song again");
+        if (state == State.PLAYING) return;
+        music.resume();
+        if (stream == null)
+            music.start(engine.getScheduler());
+        state = State.PLAYING;
+    }
+
+    // Holds the song where it is, releasing every sounding note
+    public synchronized void pause() {
+        checkOpen();
+        if (state != State.PLAYING) return;
+        music.pause();
+        state = State.PAUSED;
+    }
+
+    // Stops playing and goes back to the start
+    public synchronized void stop() {
+        checkOpen();
+        music.stop();
+        music.pause();
+        music.seek(0);
+        state = State.STOPPED;
+    }
+
+    // Stops for good and closes the synthesizer; callbacks of a song that wasn't over see it cancelled
+    @Override
+    public synchronized void close() {
+        if (state == State.CLOSED) return;
+        music.close();
+        state = State.CLOSED;
+        engine.closed(this);
+    }
+
+    private void checkOpen() {
+        if (state == State.CLOSED) throw new IllegalStateException("Session is closed");
+    }
+
+    // Calls back once the song has played to the end (or failed), on the thread playing it
+    // Closing the session first calls back with a CancellationException
+    public PlaybackSession onComplete(Consumer<PlaybackSession> finished, Consumer<Throwable> failed) {
+        music.getCompletion().whenComplete((ignored, failure) -> {
+            if (failure == null) finished.accept(this);
+            else failed.accept(failure);
+        });
+        return this;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public State getState() {
+        return state;
+    }
+
+    public Song getSong() {
+        return song;
+    }
+
+    // Seeking, looping, speed, metronome...
+    public MusicHandler getMusic() {
+        return music;
+    }
+
+    // Rendered audio of a stream session, reading it is what plays the song (null for a live session)
+    public InputStream getAudioStream() {
+        return stream;
+    }
+
+    public boolean isStream() {
+        return stream != null;
+    }
+
+    // Renders one block at a time, after sending the synthesizer every event due by the block's end
+    private class AudioStream extends InputStream {
+
+        private final AudioInputStream audio;
+        private final int blockBytes;
+        private final long blockNanos;
+
+        AudioStream(AudioInputStream audio) {
+            this.audio = audio;
+            int frameSize = audio.getFormat().getFrameSize();
+            blockBytes = BLOCK_FRAMES * frameSize;
+            blockNanos = (long) (BLOCK_FRAMES * 1e9 / audio.getFormat().getSampleRate());
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Audio is read whole frames at a time");
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (state == State.CLOSED || state == State.FINISHED) return -1;
+            // Until start() (or while paused) the synthesizer just renders silence
+            if (state == State.PLAYING)
+                music.dispatchUntil(music.getClock().getSongNanos());
+            if (music.getCompletion().isDone()) return -1;
+            return audio.read(b, off, Math.min(len, blockBytes));
+        }
+
+        @Override
+        public void close() {
+            PlaybackSession.this.close();
+        }
+    }
+
+    private static final int BLOCK_FRAMES = 512;
+}
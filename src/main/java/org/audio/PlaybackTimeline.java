@@ -0,0 +1,188 @@
+package org.audio;
+
+import org.midireading.MidiFile;
+import org.midireading.PackedMessage;
+import org.midireading.TempoMap;
+
+import java.util.Arrays;
+
+// Every channel message of a song merged into one time-sorted list
+// Tracks are k-way merged once up front, so playback only has to follow a single cursor
+//
+// A streamed timeline (see SongStream) starts empty and grows while it's being played:
+// one producer thread appends & publishes events, any number of readers see the published prefix
+public class PlaybackTimeline {
+
+    // ticks, song time of each event (resolved through the tempo map) & packed channel messages (see PackedMessage)
+    // Swapped as a whole when the producer grows them, so a reader never sees new arrays without their contents
+    private record Events(long[] ticks, long[] nanos, int[] messages) {}
+
+    private volatile Events events;
+    private int appended;               // Producer only
+    private volatile int published;     // Events readers may use; written after the events, read before them
+    private volatile long readyNanos;   // Every event up to this song time is published
+    private volatile boolean complete;
+
+    public PlaybackTimeline(MidiFile midiFile, TempoMap tempoMap) {
+        MidiFile.TrackData[] tracks = midiFile.getTracks();
+
+        // Only channel messages are played, meta events are already folded into the tempo map
+        int total = 0;
+        for (MidiFile.TrackData track : tracks)
+            for (int i = 0; i < track.size(); i++)
+                if (PackedMessage.isChannelMessage(track.getMessage(i))) total++;
+
+        long[] ticks = new long[total];
+        long[] nanos = new long[total];
+        int[] messages = new int[total];
+
+        // Min-heap of tracks ordered by (next tick, track number) so ties keep file order
+        int[] cursors = new int[tracks.length];
+        int[] heap = new int[tracks.length];
+        int heapSize = 0;
+        for (int t = 0; t < tracks.length; t++) {
+            cursors[t] = nextChannelMessage(tracks[t], 0);
+            if (cursors[t] < tracks[t].size())
+                heap[heapSize++] = t;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(heap, heapSize, i, tracks, cursors);
+
+        int size = 0;
+        while (heapSize > 0) {
+            int t = heap[0];
+            MidiFile.TrackData track = tracks[t];
+            int j = cursors[t];
+            ticks[size] = track.getTick(j);
+            nanos[size] = tempoMap.tickToNanos(track.getTick(j));
+            messages[size++] = track.getMessage(j);
+
+            // Advance this track, dropping it from the heap once it's exhausted
+            cursors[t] = nextChannelMessage(track, j + 1);
+            if (cursors[t] >= track.size())
+                heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, 0, tracks, cursors);
+        }
+        events = new Events(ticks, nanos, messages);
+        appended = published = total;
+        readyNanos = Long.MAX_VALUE;
+        complete = true;
+    }
+
+    // Rebuilds a timeline from its arrays (see SongFile)
+    public PlaybackTimeline(long[] ticks, long[] nanos, int[] messages) {
+        events = new Events(ticks, nanos, messages);
+        appended = published = messages.length;
+        readyNanos = Long.MAX_VALUE;
+        complete = true;
+    }
+
+    // Empty timeline to be filled by a producer
+    public PlaybackTimeline(int capacity) {
+        events = new Events(new long[capacity], new long[capacity], new int[capacity]);
+    }
+
+    /*=============== Streaming (producer thread only) ===============*/
+
+    // Adds an event after every other one, readers don't see it until publish()
+    public void append(long tick, long songNanos, int message) {
+        Events e = events;
+        if (appended == e.messages.length) {
+            // Readers may still be using the old arrays, they hold the same published events
+            int capacity = Math.max(16, appended * 2);
+            e = new Events(Arrays.copyOf(e.ticks, capacity), Arrays.copyOf(e.nanos, capacity),
+                    Arrays.copyOf(e.messages, capacity));
+            events = e;
+        }
+        e.ticks[appended] = tick;
+        e.nanos[appended] = songNanos;
+        e.messages[appended++] = message;
+    }
+
+    // Makes every appended event visible, and promises nothing else will come before readyNanos
+    public void publish(long readyNanos) {
+        published = appended;
+        this.readyNanos = readyNanos;
+    }
+
+    // No more events will be appended
+    public void finish() {
+        publish(Long.MAX_VALUE);
+        complete = true;
+    }
+
+    // Index of the first channel message at or after index
+    private static int nextChannelMessage(MidiFile.TrackData track, int index) {
+        while (index < track.size() && !PackedMessage.isChannelMessage(track.getMessage(index)))
+            index++;
+        return index;
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int i, MidiFile.TrackData[] tracks, int[] cursors) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && before(heap[left], heap[smallest], tracks, cursors)) smallest = left;
+            if (right < heapSize && before(heap[right], heap[smallest], tracks, cursors)) smallest = right;
+            if (smallest == i) return;
+            int swap = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = swap;
+            i = smallest;
+        }
+    }
+
+    // Whether track a's next event comes before track b's
+    private static boolean before(int a, int b, MidiFile.TrackData[] tracks, int[] cursors) {
+        long tickA = tracks[a].getTick(cursors[a]);
+        long tickB = tracks[b].getTick(cursors[b]);
+        return tickA < tickB || (tickA == tickB && a < b);
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    // Number of published events
+    public int size() {
+        return published;
+    }
+
+    public long getTick(int index) {
+        return events.ticks[index];
+    }
+
+    public long getNanos(int index) {
+        return events.nanos[index];
+    }
+
+    public int getMessage(int index) {
+        return events.messages[index];
+    }
+
+    // Index of the first published event at or after a song time (size() if there's none)
+    public int indexAt(long songNanos) {
+        int low = 0, high = published;
+        long[] nanos = events.nanos;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (nanos[mid] < songNanos) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // Song time of the last published event
+    public long getEndNanos() {
+        int size = published;
+        return size == 0 ? 0 : events.nanos[size - 1];
+    }
+
+    // Song time up to which the timeline is known
+    public long getReadyNanos() {
+        return readyNanos;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+}
@@ -0,0 +1,136 @@
+package org.audio;
+
+import java.util.function.LongSupplier;
+
+// Maps real time to song time through a playback rate that can change at any moment
+// The clock is a chain of straight segments: each rate change starts a new one at the current song time,
+// so changing speed is O(1), never jumps, and song times (events, hits) never have to be rescaled
+//
+// Real time comes from a time source, System.nanoTime() for live playback,
+// or e.g. how much audio has been rendered for an offline render
+//
+// Audio & visuals share one clock. The audio device's clock drifts away from System.nanoTime() over a long song,
+// so sync() nudges the clock toward it a fraction of a millisecond at a time: the clock stays on what's audible
+// without ever visibly jumping
+public class SongClock {
+
+    // Song time at a real time, and how fast song time moves from there (0 while paused)
+    private record Segment(long realNanos, long songNanos, double rate) {
+        long songAt(long now) {
+            return songNanos + (long) ((now - realNanos) * rate);
+        }
+    }
+
+    private final LongSupplier timeSource;
+    private volatile Segment segment;   // Replaced whole, so readers never need a lock
+    private double speed = 1;           // Rate to go back to after a pause
+    private volatile long correctionNanos;  // Added to the time source, keeps the clock in step with the audio
+    private volatile double driftNanos;     // Smoothed error still to correct (audio ahead > 0)
+
+    // Starts at song time 0, right now
+    public SongClock() {
+        this(System::nanoTime);
+    }
+
+    public SongClock(LongSupplier timeSource) {
+        this.timeSource = timeSource;
+        segment = new Segment(timeSource.getAsLong(), 0, 1);
+    }
+
+    // Song time right now
+    public long getSongNanos() {
+        return segment.songAt(getRealNanos());
+    }
+
+    // Song time at some real time
+    public long songNanosAt(long realNanos) {
+        return segment.songAt(realNanos);
+    }
+
+    // Real time at which the clock reaches a song time, Long.MAX_VALUE if it never will (paused)
+    public long realNanosAt(long songNanos) {
+        Segment s = segment;
+        if (s.rate <= 0)
+            return songNanos <= s.songNanos ? s.realNanos : Long.MAX_VALUE;
+        return s.realNanos + (long) ((songNanos - s.songNanos) / s.rate);
+    }
+
+    // Changes the playback speed (1 = as written) from this moment on
+    public synchronized void setSpeed(double speed) {
+        if (speed <= 0) throw new IllegalArgumentException("Speed must be positive: " + speed);
+        this.speed = speed;
+        if (!isPaused())
+            restart(getSongNanos(), getRealNanos(), speed);
+    }
+
+    public synchronized void pause() {
+        if (!isPaused())
+            restart(getSongNanos(), getRealNanos(), 0);
+    }
+
+    public synchronized void resume() {
+        // A clock set to start later (see set) still waits for that moment
+        if (isPaused())
+            restart(segment.songNanos, Math.max(segment.realNanos, getRealNanos()), speed);
+    }
+
+    // Jumps to a song time right now
+    public void set(long songNanos) {
+        set(songNanos, getRealNanos());
+    }
+
+    // Jumps to a song time, reached at a real time (the clock runs before it, a little behind the song time)
+    public synchronized void set(long songNanos, long realNanos) {
+        restart(songNanos, realNanos, isPaused() ? 0 : speed);
+    }
+
+    // Moves song time by an amount without touching the rate, e.g. to take a loop's repeats back out
+    public synchronized void shift(long songDeltaNanos) {
+        Segment s = segment;
+        segment = new Segment(s.realNanos, s.songNanos + songDeltaNanos, s.rate);
+    }
+
+    private void restart(long songNanos, long realNanos, double rate) {
+        segment = new Segment(realNanos, songNanos, rate);
+    }
+
+    // Compares the clock with a reading of an audio clock that should be expectedOffsetNanos ahead of it,
+    // then corrects part of the (smoothed) difference, at most MAX_SYNC_STEP_NANOS per call
+    public synchronized void sync(long audioNanos, long expectedOffsetNanos) {
+        long error = audioNanos - getRealNanos() - expectedOffsetNanos;
+        double drift = driftNanos + (error - driftNanos) * SYNC_SMOOTHING;
+        long step = Math.max(-MAX_SYNC_STEP_NANOS, Math.min(MAX_SYNC_STEP_NANOS, (long) drift));
+        correctionNanos += step;
+        driftNanos = drift - step;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public boolean isPaused() {
+        return segment.rate == 0;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    // The time source's reading, corrected toward the audio clock
+    public long getRealNanos() {
+        return timeSource.getAsLong() + correctionNanos;
+    }
+
+    // How far the clock has been moved to follow the audio, in total
+    public long getCorrectionNanos() {
+        return correctionNanos;
+    }
+
+    // How far the audio clock is still ahead of this one (behind if negative), smoothed
+    public long getDriftNanos() {
+        return (long) driftNanos;
+    }
+
+    // Each sync() moves the clock by at most this much, small enough to never show (0.25 ms per 100 ms)
+    private static final long MAX_SYNC_STEP_NANOS = 250_000;
+    // How much each new reading moves the smoothed error, audio clocks only tick once per rendered block
+    private static final double SYNC_SMOOTHING = 0.1;
+}
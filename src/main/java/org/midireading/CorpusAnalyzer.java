@@ -0,0 +1,255 @@
+package org.midireading;
+
+import org.songs.Song;
+import org.visuals.DrumChart;
+import org.visuals.DrumPart;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+import static org.midireading.TrackSettings.metaTypes.*;
+
+// Computes drum statistics for every MIDI file under a folder, as CSV on stdout:
+//   CorpusAnalyzer [folder] [decoding threads]
+// Files are read on virtual threads and decoded on a bounded pool (one thread per core by default)
+public class CorpusAnalyzer {
+
+    private final int threads;
+
+    private long eventCount;
+    private long elapsedNanos;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Path.of(args.length > 0 ? args[0] : "src/main/resources");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        CorpusAnalyzer analyzer = new CorpusAnalyzer(threads);
+        List<SongStats> results = analyzer.analyze(root);
+
+        PrintStream out = System.out;
+        out.println(SongStats.CSV_HEADER);
+        int failed = 0;
+        for (SongStats stats : results) {
+            if (stats.error != null) {
+                System.err.println("Skipping " + stats.path + ": " + stats.error);
+                failed++;
+            } else
+                out.println(stats.toCsv());
+        }
+
+        double seconds = analyzer.elapsedNanos / 1e9;
+        System.err.printf("Analyzed %d files (%d failed) with %d threads in %.3fs: %.1f files/s, %.0f events/s%n",
+                results.size(), failed, threads, seconds,
+                results.size() / seconds, analyzer.eventCount / seconds);
+    }
+
+    public CorpusAnalyzer(int threads) {
+        this.threads = threads;
+    }
+
+    // Analyzes every MIDI file under root, results are in path order
+    public List<SongStats> analyze(Path root) throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(MidiDump::isMidiFile).sorted().toList();
+        }
+        return analyze(files);
+    }
+
+    // Analyzes a list of files, results are in the same order
+    public List<SongStats> analyze(List<Path> files) throws InterruptedException {
+        eventCount = 0;
+        long start = System.nanoTime();
+        SongStats[] results = new SongStats[files.size()];
+        CountDownLatch done = new CountDownLatch(files.size());
+        // Caps how many files are read but not yet decoded, so memory stays flat on huge libraries
+        Semaphore inFlight = new Semaphore(threads * 4);
+
+        try (ExecutorService io = Executors.newVirtualThreadPerTaskExecutor();
+             ExecutorService decoders = Executors.newFixedThreadPool(threads)) {
+            for (int i = 0; i < files.size(); i++) {
+                int index = i;
+                Path file = files.get(i);
+                inFlight.acquire();
+                io.execute(() -> {
+                    // The file's permit & count are the decoder's once it's submitted, until then they're ours
+                    boolean handedOff = false;
+                    try {
+                        byte[] bytes = Files.readAllBytes(file);
+                        decoders.execute(() -> {
+                            try {
+                                results[index] = analyze(file, ByteBuffer.wrap(bytes));
+                            } catch (Exception e) {
+                                results[index] = SongStats.failed(file, e);
+                            } finally {
+                                inFlight.release();
+                                done.countDown();
+                            }
+                        });
+                        handedOff = true;
+                    } catch (Exception | OutOfMemoryError e) {
+                        // Unreadable, too big to hold, or the decoders wouldn't take it
+                        results[index] = SongStats.failed(file, e);
+                    } finally {
+                        if (!handedOff) {
+                            inFlight.release();
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        }
+        elapsedNanos = System.nanoTime() - start;
+
+        for (SongStats stats : results)
+            eventCount += stats.events;
+        return List.of(results);
+    }
+
+    // Decodes one file & computes its statistics
+    public static SongStats analyze(Path path, ByteBuffer bytes) throws Exception {
+        MidiFile midiFile = new MidiFile(bytes);
+        Song song = new Song(midiFile);
+        DrumChart chart = song.getDrumChart();
+        TempoMap tempoMap = song.getTempoMap();
+
+        SongStats stats = new SongStats(path);
+        for (MidiFile.TrackData track : midiFile.getTracks())
+            stats.events += track.size();
+        stats.seconds = song.getEndNanos() / 1e9;
+
+        for (DrumPart part : DrumPart.values())
+            stats.partHits[part.ordinal()] = chart.getPartCount(part);
+        stats.hits = chart.size();
+        stats.leftHits = chart.getLeftCount();
+        stats.rightHits = chart.getRightCount();
+
+        // Most hits within any one-second window
+        int first = 0;
+        for (int last = 0; last < chart.size(); last++) {
+            while (chart.getNanos(last) - chart.getNanos(first) >= NANOS_PER_SEC)
+                first++;
+            stats.peakHitsPerSecond = Math.max(stats.peakHitsPerSecond, last - first + 1);
+        }
+
+        // Only count tempos that are actually reached before the song ends
+        stats.minBpm = Integer.MAX_VALUE;
+        long endTick = midiFile.getTickLength();
+        for (int i = 0; i < tempoMap.getSegmentCount(); i++) {
+            if (i > 0 && tempoMap.getSegmentTick(i) > endTick) break;
+            int bpm = MIDIFormatter.tempoToBPM(tempoMap.getSegmentTempo(i));
+            stats.minBpm = Math.min(stats.minBpm, bpm);
+            stats.maxBpm = Math.max(stats.maxBpm, bpm);
+        }
+
+        // Song info from meta events, the first of each kind describes the song
+        TrackSettings settings = new TrackSettings(new MidiContext(midiFile));
+        for (MidiFile.TrackData track : midiFile.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                if (!PackedMessage.isMeta(track.getMessage(i)) || track.getPayloadLength(i) == 0)
+                    continue;
+                settings.update(midiFile, track, i);
+                switch (track.getPayloadType(i)) {
+                    case TRACK_NAME:
+                        if (stats.name == null) stats.name = settings.getName();
+                        break;
+
+                    case TIME_SIGNATURE:
+                        if (stats.timeSignatures.isEmpty()) {
+                            stats.timeSigNum = settings.getTimeSigNum();
+                            stats.timeSigType = settings.getTimeSigType();
+                        }
+                        stats.timeSignatures.add(settings.getTimeSigNum() + "/" + settings.getTimeSigType());
+                        break;
+
+                    case KEY_SIGNATURE:
+                        if (!stats.hasKey) {
+                            stats.hasKey = true;
+                            stats.keyNote = settings.getKeyNote();
+                            stats.majorKey = settings.isMajorKey();
+                        }
+                        break;
+                }
+            }
+        }
+        return stats;
+    }
+
+    // Drum statistics of one song
+    public static class SongStats {
+        public final Path path;
+        public String error;
+
+        public long events;
+        public double seconds;
+        public int hits;
+        public final int[] partHits = new int[DrumPart.values().length];
+        public int peakHitsPerSecond;
+        public int minBpm;
+        public int maxBpm;
+        public final TreeSet<String> timeSignatures = new TreeSet<>();
+        public String name;             // First track name in the file
+        public int timeSigNum = 4;      // First time signature (4/4 if there isn't one)
+        public int timeSigType = 4;
+        public boolean hasKey;
+        public int keyNote;             // First key signature
+        public boolean majorKey = true;
+        public int leftHits;
+        public int rightHits;
+
+        public SongStats(Path path) {
+            this.path = path;
+        }
+
+        static SongStats failed(Path path, Throwable e) {
+            SongStats stats = new SongStats(path);
+            stats.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+            return stats;
+        }
+
+        public double getHitsPerSecond() {
+            return seconds > 0 ? hits / seconds : 0;
+        }
+
+        public String toCsv() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('"').append(path.toString().replace("\"", "\"\"")).append('"')
+                    .append(',').append(events)
+                    .append(',').append(String.format("%.2f", seconds))
+                    .append(',').append(hits)
+                    .append(',').append(String.format("%.2f", getHitsPerSecond()))
+                    .append(',').append(peakHitsPerSecond)
+                    .append(',').append(minBpm)
+                    .append(',').append(maxBpm)
+                    .append(',').append(String.join(" ", timeSignatures))
+                    .append(',').append(leftHits)
+                    .append(',').append(rightHits);
+            for (int count : partHits)
+                sb.append(',').append(count);
+            return sb.toString();
+        }
+
+        public static final String CSV_HEADER;
+
+        static {
+            StringBuilder sb = new StringBuilder("file,events,seconds,hits,hits_per_sec,peak_hits_per_sec,"
+                    + "min_bpm,max_bpm,time_signatures,left_hits,right_hits");
+            for (DrumPart part : DrumPart.values())
+                sb.append(',').append(part.name().toLowerCase());
+            CSV_HEADER = sb.toString();
+        }
+    }
+
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+}
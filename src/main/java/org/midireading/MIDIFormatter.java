@@ -1,66 +1,201 @@
 package org.midireading;
 
 import javax.sound.midi.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 import static javax.sound.midi.ShortMessage.*;
 import static org.midireading.TrackSettings.metaTypes.*;
 
+// Stateless helpers for turning MIDI data into readable text
+// Anything that depends on the song (timing, current track settings) is passed in,
+// so several songs can be formatted on different threads at once
 public class MIDIFormatter {
-    
-    private static MIDIFormatter instance;
-    private TrackSettings settings;
-    private double ticksPerQuarterNote;
+
+    private MIDIFormatter() {}
 
     // Returns a formatted string of a given MidiMessage's information
-    // Assumed that settings was updated before this is called
-    public String formatMidiMessage(MidiMessage message) {
+    // Assumed that settings was updated with the message before this is called
+    public static String formatMidiMessage(MidiMessage message, TrackSettings settings) {
 
         StringBuilder sb = new StringBuilder();
+        try {
+            if (message instanceof ShortMessage shortMsg) {
+                formatShortMessageTo(sb, PackedMessage.pack(shortMsg.getStatus(), shortMsg.getData1(), shortMsg.getData2()));
+
+            // otherwise, it's a system-exclusive or meta-event
+            } else if (message instanceof MetaMessage meta) {
+                byte[] data = meta.getData();
+                formatMetaTo(sb, meta.getType(), ByteBuffer.wrap(data), 0, data.length, settings);
+            } else if (message instanceof SysexMessage sysex) {
+                byte[] data = sysex.getData();
+                formatSysexTo(sb, sysex.getStatus(), ByteBuffer.wrap(data), 0, data.length);
+            } else
+                throw new RuntimeException("MidiMessage is not a ShortMessage, MetaMessage, or SysexMessage");
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    // Appends the same text as formatMidiMessage for an event of a MidiFile
+    // Doesn't build any intermediate strings, so it can stream a whole library into one Writer
+    // Assumed that settings was updated with the event before this is called
+    public static void formatTo(Appendable out, TrackSettings settings,
+                                MidiFile midiFile, MidiFile.TrackData track, int index) throws IOException {
+        int message = track.getMessage(index);
+        if (PackedMessage.isChannelMessage(message))
+            formatShortMessageTo(out, message);
+        else if (PackedMessage.isMeta(message))
+            formatMetaTo(out, track.getPayloadType(index), midiFile.getBuffer(),
+                    track.getPayloadOffset(index), track.getPayloadLength(index), settings);
+        else
+            formatSysexTo(out, PackedMessage.getStatus(message), midiFile.getBuffer(),
+                    track.getPayloadOffset(index), track.getPayloadLength(index));
+    }
+
+    // Appends a packed channel message (see PackedMessage)
+    public static void formatShortMessageTo(Appendable out, int message) throws IOException {
+        int command = PackedMessage.getCommand(message);
+        int data1 = PackedMessage.getData1(message);
+        int data2 = PackedMessage.getData2(message);
+        out.append("Ch");
+        appendInt(out, PackedMessage.getChannel(message));
+        out.append('\t');
 
-        if (message instanceof ShortMessage shortMsg) {
-            sb.append(String.format("Ch%d\t", shortMsg.getChannel()));
-
-            // If message is note on or off, print it all fancy-like
-            if (shortMsg.getCommand() == NOTE_ON || shortMsg.getCommand() == NOTE_OFF) {
-                String note;
-                if (settings.getChannel() == 9) // or 10 if 1-indexed
-                    note = MIDIFormatter.getPercussion(shortMsg.getData1(), false);
-                else
-                    note = MIDIFormatter.getNote(shortMsg.getData1());
-
-                sb.append(String.format("%s %s\t|",
-                        note,
-                        shortMsg.getCommand() == NOTE_ON ? "On " : "Off"
-                        ));
-                if (shortMsg.getCommand() == NOTE_ON)
-                    // velocity
-                    sb.append(" force: ").append(shortMsg.getData2());
-            } else {
-                sb.append(shortMessageNames.get(shortMsg.getCommand())).append(": ");
-                if (shortMsg.getCommand() == PROGRAM_CHANGE)
-                    sb.append(getInstrument(shortMsg.getData1()));
-                else
-                    sb.append(String.format("(%02X, %02X)", shortMsg.getData1(), shortMsg.getData2()));
+        // If message is note on or off, print it all fancy-like
+        if (command == NOTE_ON || command == NOTE_OFF) {
+            if (PackedMessage.getChannel(message) == 9 && data1 >= 35 && data1 - 35 < PERCUSSION_MAP.length) // or 10 if 1-indexed
+                appendPadded(out, PERCUSSION_MAP[data1 - 35], 18);
+            else {
+                out.append(NOTE_NAMES_SHARP[data1 % 12]);
+                appendInt(out, data1 / 12 - 1);
             }
 
-        // otherwise, it's a system-exclusive or meta-event
+            out.append(command == NOTE_ON ? " On \t|" : " Off\t|");
+            if (command == NOTE_ON) {
+                // velocity
+                out.append(" force: ");
+                appendInt(out, data2);
+            }
         } else {
-            byte[] bytes = message.getMessage();
-            // If it's a meta event, some setting is probably modified
-            if (message instanceof MetaMessage meta) {
-                sb.append(showSetting(meta));
-            // For sysex events, show entire message bc idk what to do with it :3
-            } else if (message instanceof SysexMessage) {
-                sb.append("Sysex message: ");
-                for (byte b: bytes)
-                    sb.append(String.format("%02X ", b));
-            } else
-                throw new RuntimeException("MidiMessage is not a ShortMessage, MetaMessage, or SysexMessage");
+            out.append(shortMessageNames.get(command)).append(": ");
+            if (command == PROGRAM_CHANGE)
+                out.append(getInstrument(data1));
+            else {
+                out.append('(');
+                appendHex(out, data1);
+                out.append(", ");
+                appendHex(out, data2);
+                out.append(')');
+            }
+        }
+    }
+
+    // Appends a meta event, using settings for the values it already decoded
+    public static void formatMetaTo(Appendable out, int type, ByteBuffer bytes, int start, int length,
+                                    TrackSettings settings) throws IOException {
+        out.append(metaEventNames.get(type)).append(": ");
+        if (type != SEQUENCE_NUMBER && (type & 0x0F) == type) {
+            appendText(out, bytes, start, length);
+            return;
+        }
+
+        switch (type) {
+            case SEQUENCE_NUMBER -> appendInt(out, length >= 2 ? bytesToNum(bytes, start, 2) : 0);
+            case TRACK_NAME -> out.append(settings.getName());
+            case INSTRUMENT_NAME -> out.append(settings.getInstrument());
+            case CHANNEL_PREFIX -> appendInt(out, settings.getChannel());
+            case SET_TEMPO -> {
+                appendInt(out, settings.getBpm());
+                out.append(" BPM");
+            }
+            case SMPTE_OFFSET -> {
+                out.append(settings.getOffset().toString()).append(" @ ");
+                out.append(String.valueOf(settings.getOffsetFrameRate())).append(" fps");
+            }
+            case TIME_SIGNATURE -> {
+                appendInt(out, settings.getTimeSigNum());
+                out.append('/');
+                appendInt(out, settings.getTimeSigType());
+            }
+            case KEY_SIGNATURE -> out.append(settings.getKey());
+            case SEQUENCER_SPECIFIC -> appendBytes(out, bytes, start, length);
+            case END_OF_TRACK -> {}
+            default -> out.append('?');
+        }
+    }
+
+    // For sysex events, show entire message bc idk what to do with it :3
+    public static void formatSysexTo(Appendable out, int status, ByteBuffer bytes, int start, int length) throws IOException {
+        out.append("Sysex message: ");
+        appendHex(out, status);
+        out.append(' ');
+        appendBytes(out, bytes, start, length);
+    }
+
+    // Displays certain data from a MetaMessage, uses a TrackSettings object if possible
+    public static String showSetting(MetaMessage meta, TrackSettings settings) {
+        StringBuilder sb = new StringBuilder();
+        byte[] data = meta.getData();
+        try {
+            formatMetaTo(sb, meta.getType(), ByteBuffer.wrap(data), 0, data.length, settings);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         return sb.toString();
     }
 
+    /*=============== Allocation-free appending ===============*/
+
+    // Appends two hex digits (like %02X)
+    public static void appendHex(Appendable out, int b) throws IOException {
+        out.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+
+    // Appends each byte as two hex digits followed by a space
+    public static void appendBytes(Appendable out, ByteBuffer bytes, int start, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            appendHex(out, bytes.get(start + i));
+            out.append(' ');
+        }
+    }
+
+    // Appends a text event's payload, one char per byte
+    public static void appendText(Appendable out, ByteBuffer bytes, int start, int length) throws IOException {
+        for (int i = 0; i < length; i++)
+            out.append((char) (bytes.get(start + i) & 0xFF));
+    }
+
+    // Appends a string left-aligned in a field of width chars (like %-Ns)
+    public static void appendPadded(Appendable out, CharSequence str, int width) throws IOException {
+        out.append(str);
+        for (int i = str.length(); i < width; i++)
+            out.append(' ');
+    }
+
+    // Appends a decimal integer without going through a String
+    public static void appendInt(Appendable out, long num) throws IOException {
+        if (out instanceof StringBuilder sb) {
+            sb.append(num);
+            return;
+        }
+        if (num < 0) {
+            out.append('-');
+            num = -num;
+        }
+        long divisor = 1;
+        while (num / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            out.append((char) ('0' + (num / divisor) % 10));
+    }
+
     // Returns the instrument corresponding to a program number
     public static String getInstrument(int programNumber) {
         return INSTRUMENT_MAP[programNumber];
@@ -78,36 +213,6 @@ public class MIDIFormatter {
         return NOTE_NAMES_SHARP[note] + octave;
     }
 
-    // Displays certain data from a MetaMessage, uses a TrackSettings object if possible
-    public String showSetting(MetaMessage meta) {
-        String str = metaEventNames.get(meta.getType()) + ": ";
-        if ((meta.getType() & 0x0F) == meta.getType())
-            return str + textEvent(meta.getMessage());
-
-        str += switch (meta.getType()) {
-            case SEQUENCE_NUMBER -> bytesToNum(meta.getMessage(), 3, 2);
-            case TEXT_EVENT -> textEvent(meta.getMessage());
-            case TRACK_NAME -> settings.getName();
-            case INSTRUMENT_NAME -> settings.getInstrument();
-            case CHANNEL_PREFIX -> settings.getChannel();
-            case SET_TEMPO -> settings.getBpm() + " BPM";
-            case SMPTE_OFFSET -> settings.getOffset().toString();
-            case TIME_SIGNATURE -> settings.getTimeSigNum() + "/" + settings.getTimeSigType();
-            case KEY_SIGNATURE -> settings.getKey();
-            case SEQUENCER_SPECIFIC, END_OF_TRACK -> "";
-            default -> "?";
-        };
-
-        if (meta.getType() == SEQUENCER_SPECIFIC) {
-            StringBuilder sb = new StringBuilder();
-            byte[] bytes = meta.getMessage();
-            for (int i = 3; i < bytes[2]; i++)
-                sb.append(String.format("%02X ", bytes[i]));
-            str += sb.toString();
-        }
-        return str;
-    }
-
     // Returns a string from the bytes of a MIDI text event
     public static String textEvent(byte[] bytes) {
         StringBuilder str = new StringBuilder();
@@ -116,6 +221,14 @@ public class MIDIFormatter {
         return str.toString();
     }
 
+    // Returns a string from a payload of a MIDI text event inside a (mapped) buffer
+    public static String textEvent(ByteBuffer buffer, int offset, int length) {
+        StringBuilder str = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            str.append((char)(buffer.get(offset + i) & 0xFF));
+        return str.toString();
+    }
+
     // Converts a tempo (in microseconds per quarter-note) into quarter-notes(beats) per minute
     // Primarily for display purposes
     public static int tempoToBPM(int microseconds) {
@@ -126,12 +239,6 @@ public class MIDIFormatter {
         return bpm;
     }
 
-    // Converts a tempo (in microseconds per quarter-note) into nanoseconds per midi tick
-    public long tempoToNanosPerTick(int microsPerQuarter) {
-        double real = microsPerQuarter / ticksPerQuarterNote * 1000L;
-        return (long) real;
-    }
-
     // Converts an integer into binary-coded decimal
     // im lazy :3
     public static int bcd(int num) {
@@ -148,73 +255,68 @@ public class MIDIFormatter {
         return sum;
     }
 
-    public static MIDIFormatter getInstance() {
-        if (instance == null)
-            instance = new MIDIFormatter();
-        return instance;
-    }
-
-    public double getTicksPerQuarterNote() {
-        return ticksPerQuarterNote;
+    // Same as above, reading from a buffer (big-endian, like every SMF field)
+    public static int bytesToNum(ByteBuffer buffer, int index, int numBytes) {
+        if (numBytes > 4 || numBytes < 1)
+            throw new UnsupportedOperationException("Invalid number bytes for a 32-bit integer!");
+        int sum = 0;
+        for (int i = 0; i < numBytes; i++)
+            sum |= (buffer.get(index + i) & 0xFF) << ((numBytes - i - 1) * 8);
+        return sum;
     }
 
-    public void setupFormatter(Sequence sequence) {
-        initializeMaps();
-        if (sequence.getDivisionType() == Sequence.PPQ)
-            ticksPerQuarterNote = sequence.getResolution();
-        else
-            throw new RuntimeException("SMPTE timing not supported!");
-    }
+    private static final double ERROR_THRESHOLD = 1e-4;
 
-    public void setTrackSettings(TrackSettings settings) {
-        this.settings = settings;
-    }
+    private static final double MINUTE_PER_MICROSECOND = 6e7;
 
-    public void initializeMaps() {
-        metaEventNames.put(SEQUENCE_NUMBER,     "Sequence Number");
-        metaEventNames.put(TEXT_EVENT,          "Text event");
-        metaEventNames.put(COPYRIGHT_NOTICE,    "Copyright notice");
-        metaEventNames.put(TRACK_NAME,          "Track name");
-        metaEventNames.put(INSTRUMENT_NAME,     "Instrument name");
-        metaEventNames.put(LYRIC,               "Lyric");
-        metaEventNames.put(MARKER,              "Marker");
-        metaEventNames.put(CUE_POINT,           "Cue point");
-        metaEventNames.put(PROGRAM_NAME,        "Program name");
-        metaEventNames.put(DEVICE_NAME,         "Device name");
-        metaEventNames.put(CHANNEL_PREFIX,      "MIDI channel prefix");
-        metaEventNames.put(END_OF_TRACK,        "End of track");
-        metaEventNames.put(SET_TEMPO,           "Set tempo");
-        metaEventNames.put(SMPTE_OFFSET,        "SMPTE offset");
-        metaEventNames.put(TIME_SIGNATURE,      "Time signature");
-        metaEventNames.put(KEY_SIGNATURE,       "Key signature");
-        metaEventNames.put(SEQUENCER_SPECIFIC,  "Sequencer-specific event");
-
-        shortMessageNames.put(ACTIVE_SENSING,	    "Active Sensing");
-        shortMessageNames.put(CHANNEL_PRESSURE,     "Channel Pressure");
-        shortMessageNames.put(CONTINUE,	            "Continue");
-        shortMessageNames.put(CONTROL_CHANGE,	    "Control Change");
-        shortMessageNames.put(END_OF_EXCLUSIVE,	    "End Of Exclusive");
-        shortMessageNames.put(MIDI_TIME_CODE,	    "Midi Time Code");
-        shortMessageNames.put(NOTE_OFF,	            "Note Off");
-        shortMessageNames.put(NOTE_ON,	            "Note On");
-        shortMessageNames.put(PITCH_BEND,	        "Pitch Bend");
-        shortMessageNames.put(POLY_PRESSURE,	    "Poly Pressure");
-        shortMessageNames.put(PROGRAM_CHANGE,	    "Program Change");
-        shortMessageNames.put(SONG_POSITION_POINTER,"Song Position Pointer");
-        shortMessageNames.put(SONG_SELECT,	        "Song Select");
-        shortMessageNames.put(START,	            "Start");
-        shortMessageNames.put(STOP,	                "Stop");
-        shortMessageNames.put(SYSTEM_RESET,	        "System Reset");
-        shortMessageNames.put(TIMING_CLOCK,	        "Timing Clock");
-        shortMessageNames.put(TUNE_REQUEST,	        "Tune Request");
-    }
+    // Lookup tables are filled once and never change, so they're safe to share between threads
+    private static final Map<Integer, String> metaEventNames;
+    private static final Map<Integer, String> shortMessageNames;
 
-    private static final double ERROR_THRESHOLD = 1e-4;
+    static {
+        HashMap<Integer, String> metaNames = new HashMap<>(32);
+        metaNames.put(SEQUENCE_NUMBER,     "Sequence Number");
+        metaNames.put(TEXT_EVENT,          "Text event");
+        metaNames.put(COPYRIGHT_NOTICE,    "Copyright notice");
+        metaNames.put(TRACK_NAME,          "Track name");
+        metaNames.put(INSTRUMENT_NAME,     "Instrument name");
+        metaNames.put(LYRIC,               "Lyric");
+        metaNames.put(MARKER,              "Marker");
+        metaNames.put(CUE_POINT,           "Cue point");
+        metaNames.put(PROGRAM_NAME,        "Program name");
+        metaNames.put(DEVICE_NAME,         "Device name");
+        metaNames.put(CHANNEL_PREFIX,      "MIDI channel prefix");
+        metaNames.put(END_OF_TRACK,        "End of track");
+        metaNames.put(SET_TEMPO,           "Set tempo");
+        metaNames.put(SMPTE_OFFSET,        "SMPTE offset");
+        metaNames.put(TIME_SIGNATURE,      "Time signature");
+        metaNames.put(KEY_SIGNATURE,       "Key signature");
+        metaNames.put(SEQUENCER_SPECIFIC,  "Sequencer-specific event");
+        metaEventNames = Collections.unmodifiableMap(metaNames);
 
-    private static final double MINUTE_PER_MICROSECOND = 6e7;
+        HashMap<Integer, String> shortNames = new HashMap<>(32);
+        shortNames.put(ACTIVE_SENSING,	    "Active Sensing");
+        shortNames.put(CHANNEL_PRESSURE,     "Channel Pressure");
+        shortNames.put(CONTINUE,	            "Continue");
+        shortNames.put(CONTROL_CHANGE,	    "Control Change");
+        shortNames.put(END_OF_EXCLUSIVE,	    "End Of Exclusive");
+        shortNames.put(MIDI_TIME_CODE,	    "Midi Time Code");
+        shortNames.put(NOTE_OFF,	            "Note Off");
+        shortNames.put(NOTE_ON,	            "Note On");
+        shortNames.put(PITCH_BEND,	        "Pitch Bend");
+        shortNames.put(POLY_PRESSURE,	    "Poly Pressure");
+        shortNames.put(PROGRAM_CHANGE,	    "Program Change");
+        shortNames.put(SONG_POSITION_POINTER,"Song Position Pointer");
+        shortNames.put(SONG_SELECT,	        "Song Select");
+        shortNames.put(START,	            "Start");
+        shortNames.put(STOP,	                "Stop");
+        shortNames.put(SYSTEM_RESET,	        "System Reset");
+        shortNames.put(TIMING_CLOCK,	        "Timing Clock");
+        shortNames.put(TUNE_REQUEST,	        "Tune Request");
+        shortMessageNames = Collections.unmodifiableMap(shortNames);
+    }
 
-    private static final HashMap<Integer, String> metaEventNames = new HashMap<>(15);
-    private static final HashMap<Integer, String> shortMessageNames = new HashMap<>(15);
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     private static final String[] NOTE_NAMES_SHARP = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
     private static final String[] NOTE_NAMES_FLAT = {"C", "Db", "D", "Eb", "E", "F", "Gb", "G", "Ab", "A", "Bb", "B"};
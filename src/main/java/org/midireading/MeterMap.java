@@ -0,0 +1,242 @@
+package org.midireading;
+
+import javax.sound.midi.Sequence;
+import java.util.Arrays;
+
+import static org.midireading.TrackSettings.metaTypes.TIME_SIGNATURE;
+
+// Piecewise time signature of a whole song, built once from every TIME_SIGNATURE event (like TempoMap)
+// Each segment keeps its start tick, its signature, and the number of bars before it,
+// so converting between ticks & bars is a binary search plus one divide
+//
+// A signature change that doesn't land on a bar line ends the bar it's in early, the next bar starts with it
+//
+// Beats are counted the way a drummer counts them: one per note value (7/8 has 7), except in compound meters
+// (6/8, 9/8, 12/8...) where each beat is a dotted note of three. Beats are numbered through the whole song,
+// so a beat number is one binary search away from its tick & back, like bars
+public final class MeterMap {
+
+    private final int quarterTicks;     // Ticks per quarter note
+    private long[] ticks;               // Start tick of each segment
+    private int[] bars;                 // Bars before the start of each segment
+    private long[] beats;               // Beats before the start of each segment
+    private int[] numerators;           // Beats per bar within each segment
+    private int[] denominators;         // Note value of a beat (4 = quarter note, 8 = eighth note...)
+
+    // Collects time signature changes from every track of a MidiFile
+    public MeterMap(MidiFile midiFile, TempoMap tempoMap) {
+        quarterTicks = quarterTicks(tempoMap);
+
+        int count = 0;
+        for (MidiFile.TrackData track : midiFile.getTracks())
+            for (int i = 0; i < track.size(); i++)
+                if (isTimeSignature(track, i)) count++;
+
+        long[] eventTicks = new long[count];
+        int[] eventNumerators = new int[count];
+        int[] eventDenominators = new int[count];
+        count = 0;
+        for (MidiFile.TrackData track : midiFile.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                if (!isTimeSignature(track, i)) continue;
+                int offset = track.getPayloadOffset(i);
+                eventTicks[count] = track.getTick(i);
+                eventNumerators[count] = midiFile.getBuffer().get(offset) & 0xFF;
+                eventDenominators[count++] = 1 << (midiFile.getBuffer().get(offset + 1) & 0x1F);
+            }
+        }
+        build(eventTicks, eventNumerators, eventDenominators);
+    }
+
+    // Builds a meter map from time signature changes in any order (see SongStream & SongFile)
+    public MeterMap(int quarterTicks, long[] ticks, int[] numerators, int[] denominators) {
+        this.quarterTicks = quarterTicks;
+        build(ticks.clone(), numerators.clone(), denominators.clone());
+    }
+
+    // Ticks per quarter note of a song
+    // SMPTE songs don't have one, their first tempo is used to lay out bars
+    public static int quarterTicks(TempoMap tempoMap) {
+        if (tempoMap.getDivisionType() == Sequence.PPQ)
+            return tempoMap.getResolution();
+        return (int) Math.max(1, tempoMap.nanosToTick(tempoMap.getSegmentTempo(0) * 1000L));
+    }
+
+    private static boolean isTimeSignature(MidiFile.TrackData track, int index) {
+        return PackedMessage.isMeta(track.getMessage(index))
+                && track.getPayloadType(index) == TIME_SIGNATURE
+                && track.getPayloadLength(index) >= 2;
+    }
+
+    // Sorts signature events by tick and counts the bars before each segment
+    private void build(long[] eventTicks, int[] eventNumerators, int[] eventDenominators) {
+        // Stable insertion sort, events are almost always already in order (conductor track)
+        for (int i = 1; i < eventTicks.length; i++) {
+            long tick = eventTicks[i];
+            int numerator = eventNumerators[i];
+            int denominator = eventDenominators[i];
+            int j = i - 1;
+            for (; j >= 0 && eventTicks[j] > tick; j--) {
+                eventTicks[j + 1] = eventTicks[j];
+                eventNumerators[j + 1] = eventNumerators[j];
+                eventDenominators[j + 1] = eventDenominators[j];
+            }
+            eventTicks[j + 1] = tick;
+            eventNumerators[j + 1] = numerator;
+            eventDenominators[j + 1] = denominator;
+        }
+
+        // Songs are in 4/4 until told otherwise
+        ticks = new long[eventTicks.length + 1];
+        numerators = new int[eventTicks.length + 1];
+        denominators = new int[eventTicks.length + 1];
+        numerators[0] = 4;
+        denominators[0] = 4;
+        int size = 1;
+        for (int i = 0; i < eventTicks.length; i++) {
+            // Later events on the same tick replace earlier ones, nonsense signatures are ignored
+            if (eventNumerators[i] <= 0 || eventDenominators[i] <= 0) continue;
+            if (eventTicks[i] != ticks[size - 1])
+                ticks[size++] = eventTicks[i];
+            numerators[size - 1] = eventNumerators[i];
+            denominators[size - 1] = eventDenominators[i];
+        }
+        ticks = Arrays.copyOf(ticks, size);
+        numerators = Arrays.copyOf(numerators, size);
+        denominators = Arrays.copyOf(denominators, size);
+
+        bars = new int[size];
+        beats = new long[size];
+        for (int i = 1; i < size; i++) {
+            long segmentTicks = ticks[i] - ticks[i - 1];
+            long barTicks = getBarTicks(i - 1);
+            bars[i] = bars[i - 1] + (int) ((segmentTicks + barTicks - 1) / barTicks);
+            // A bar cut short still has every beat it started
+            long beatTicks = getBeatTicks(i - 1);
+            beats[i] = beats[i - 1] + segmentTicks / barTicks * getBeatsPerBar(i - 1)
+                    + Math.min(getBeatsPerBar(i - 1), (segmentTicks % barTicks + beatTicks - 1) / beatTicks);
+        }
+    }
+
+    // Index of the segment containing a tick
+    private int segmentOfTick(long tick) {
+        int index = Arrays.binarySearch(ticks, tick);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    // Index of the segment containing a bar
+    private int segmentOfBar(int bar) {
+        // Bars can repeat when a signature changes twice within one bar, the last segment wins
+        int low = 0, high = bars.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (bars[mid] <= bar) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    // Index of the segment containing a beat
+    private int segmentOfBeat(long beat) {
+        int index = Arrays.binarySearch(beats, beat);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    // Bar (from 0) playing at a tick
+    public int tickToBar(long tick) {
+        int segment = segmentOfTick(tick);
+        return bars[segment] + (int) ((tick - ticks[segment]) / getBarTicks(segment));
+    }
+
+    // Tick at which a bar (from 0) starts
+    public long barToTick(int bar) {
+        int segment = segmentOfBar(Math.max(0, bar));
+        return ticks[segment] + (Math.max(0, bar) - bars[segment]) * getBarTicks(segment);
+    }
+
+    // Start tick of the beat playing at a tick (beats count from the start of each bar)
+    public long beatStartTick(long tick) {
+        return beatToTick(tickToBeat(tick));
+    }
+
+    // Beat (from 0, counting through the whole song) playing at a tick
+    public long tickToBeat(long tick) {
+        int segment = segmentOfTick(Math.max(0, tick));
+        long offset = Math.max(0, tick) - ticks[segment];
+        long barTicks = getBarTicks(segment);
+        int beatsPerBar = getBeatsPerBar(segment);
+        return beats[segment] + offset / barTicks * beatsPerBar
+                + Math.min(beatsPerBar - 1, offset % barTicks / getBeatTicks(segment));
+    }
+
+    // Tick at which a beat (from 0) starts
+    public long beatToTick(long beat) {
+        int segment = segmentOfBeat(Math.max(0, beat));
+        long offset = Math.max(0, beat) - beats[segment];
+        int beatsPerBar = getBeatsPerBar(segment);
+        return ticks[segment] + offset / beatsPerBar * getBarTicks(segment) + offset % beatsPerBar * getBeatTicks(segment);
+    }
+
+    // Whether a tick is the first of a bar
+    public boolean isBarStart(long tick) {
+        return barToTick(tickToBar(tick)) == tick;
+    }
+
+    public int getNumeratorAt(long tick) {
+        return numerators[segmentOfTick(tick)];
+    }
+
+    public int getDenominatorAt(long tick) {
+        return denominators[segmentOfTick(tick)];
+    }
+
+    // Length of a bar within a segment
+    public long getBarTicks(int segment) {
+        return Math.max(1, (long) quarterTicks * 4 * numerators[segment] / denominators[segment]);
+    }
+
+    // Length of a beat within a segment: one of the signature's note values, or three in a compound meter
+    public long getBeatTicks(int segment) {
+        long noteTicks = Math.max(1, (long) quarterTicks * 4 / denominators[segment]);
+        return isCompound(segment) ? noteTicks * 3 : noteTicks;
+    }
+
+    public int getBeatsPerBar(int segment) {
+        return isCompound(segment) ? numerators[segment] / 3 : numerators[segment];
+    }
+
+    // 6/8, 9/8, 12/8 & the like are felt in dotted beats, 3/8 & 7/8 aren't
+    public boolean isCompound(int segment) {
+        return denominators[segment] >= 8 && numerators[segment] > 3 && numerators[segment] % 3 == 0;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public int getQuarterTicks() {
+        return quarterTicks;
+    }
+
+    public int getSegmentCount() {
+        return ticks.length;
+    }
+
+    public int getSegmentOfTick(long tick) {
+        return segmentOfTick(tick);
+    }
+
+    public long getSegmentTick(int segment) {
+        return ticks[segment];
+    }
+
+    public int getSegmentBar(int segment) {
+        return bars[segment];
+    }
+
+    public int getSegmentNumerator(int segment) {
+        return numerators[segment];
+    }
+
+    public int getSegmentDenominator(int segment) {
+        return denominators[segment];
+    }
+}
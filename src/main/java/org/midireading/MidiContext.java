@@ -0,0 +1,107 @@
+package org.midireading;
+
+import javax.sound.midi.Sequence;
+
+// Per-song state needed to interpret a MIDI file's events (its timing division)
+// Each song gets its own context, so songs can be parsed & played on different threads
+//
+// PPQ songs count ticks per quarter note, so a tick's length depends on the tempo.
+// SMPTE songs count ticks per video frame, so every tick has the same length whatever the tempo;
+// that length is kept as an exact fraction of nanoseconds (29.97 fps doesn't divide evenly)
+public class MidiContext {
+
+    private final float divisionType;
+    private final int resolution;
+
+    // SMPTE only: one tick lasts tickNanosNumerator / tickNanosDenominator nanoseconds
+    private final long tickNanosNumerator;
+    private final long tickNanosDenominator;
+
+    public MidiContext(Sequence sequence) {
+        this(sequence.getDivisionType(), sequence.getResolution());
+    }
+
+    public MidiContext(MidiFile midiFile) {
+        this(midiFile.getDivisionType(), midiFile.getResolution());
+    }
+
+    public MidiContext(float divisionType, int resolution) {
+        this.divisionType = divisionType;
+        this.resolution = resolution;
+
+        if (divisionType == Sequence.PPQ) {
+            tickNanosNumerator = 0;
+            tickNanosDenominator = 1;
+            return;
+        }
+
+        // Frames per second as a fraction, 29.97 fps "drop frame" is really 30000/1001
+        long framesNumerator, framesDenominator;
+        if (divisionType == Sequence.SMPTE_24) { framesNumerator = 24; framesDenominator = 1; }
+        else if (divisionType == Sequence.SMPTE_25) { framesNumerator = 25; framesDenominator = 1; }
+        else if (divisionType == Sequence.SMPTE_30DROP) { framesNumerator = 30_000; framesDenominator = 1001; }
+        else if (divisionType == Sequence.SMPTE_30) { framesNumerator = 30; framesDenominator = 1; }
+        else throw new IllegalArgumentException("Unknown division type: " + divisionType);
+
+        long numerator = NANOS_PER_SEC * framesDenominator;
+        long denominator = framesNumerator * resolution;
+        long gcd = gcd(numerator, denominator);
+        tickNanosNumerator = numerator / gcd;
+        tickNanosDenominator = denominator / gcd;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long r = a % b;
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+
+    // Converts a tempo (in microseconds per quarter-note) into nanoseconds per midi tick
+    // SMPTE ticks don't depend on the tempo
+    public long tempoToNanosPerTick(int microsPerQuarter) {
+        if (isSmpte())
+            return tickNanosNumerator / tickNanosDenominator;
+        double real = microsPerQuarter / (double) resolution * 1000L;
+        return (long) real;
+    }
+
+    // Nanoseconds taken by a number of ticks at a tempo, same as a TempoMap segment
+    public long ticksToNanos(long deltaTicks, int microsPerQuarter) {
+        if (isSmpte())
+            return deltaTicks * tickNanosNumerator / tickNanosDenominator;
+        return deltaTicks * microsPerQuarter * 1000L / resolution;
+    }
+
+    // Frames per second of an SMPTE division, 24, 25, 29.97 or 30
+    public static double framesPerSecond(float divisionType) {
+        return divisionType == Sequence.SMPTE_30DROP ? 30_000 / 1001.0 : divisionType;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public float getDivisionType() {
+        return divisionType;
+    }
+
+    public boolean isSmpte() {
+        return divisionType != Sequence.PPQ;
+    }
+
+    // Ticks per quarter note (PPQ) or ticks per frame (SMPTE)
+    public int getResolution() {
+        return resolution;
+    }
+
+    public long getTickNanosNumerator() {
+        return tickNanosNumerator;
+    }
+
+    public long getTickNanosDenominator() {
+        return tickNanosDenominator;
+    }
+
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+}
@@ -0,0 +1,257 @@
+package org.midireading;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Streams every event of any number of MIDI files as human-readable text, CSV, or JSON lines
+// Like MidiInfo, but built for piping whole libraries into other tools:
+//   MidiDump [-f text|csv|json] [-o output] [-d] files or folders...
+//   -d only dumps channel 10 (drum) messages, like MidiInfo
+public class MidiDump {
+
+    public enum Format { TEXT, CSV, JSON }
+
+    private final Writer out;
+    private final Format format;
+    private final boolean drumsOnly;
+
+    // Reused for every line, so dumping doesn't allocate per event
+    private final StringBuilder line = new StringBuilder(256);
+    private final StringBuilder description = new StringBuilder(128);
+    private char[] chars = new char[256];
+
+    private long fileCount;
+    private long eventCount;
+
+    public static void main(String[] args) throws Exception {
+        Format format = Format.TEXT;
+        Path output = null;
+        boolean drumsOnly = false;
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-f" -> format = Format.valueOf(args[++i].toUpperCase());
+                case "-o" -> output = Path.of(args[++i]);
+                case "-d" -> drumsOnly = true;
+                default -> inputs.add(Path.of(args[i]));
+            }
+        }
+        if (inputs.isEmpty())
+            inputs.add(Path.of("src/main/resources"));
+
+        long start = System.nanoTime();
+        MidiDump dump;
+        try (Writer writer = output == null
+                ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), BUFFER_SIZE)
+                : new BufferedWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            dump = new MidiDump(writer, format, drumsOnly);
+            dump.dumpAll(inputs);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Dumped %d events from %d files in %.3fs (%.0f events/s)%n",
+                dump.eventCount, dump.fileCount, seconds, dump.eventCount / seconds);
+    }
+
+    public MidiDump(Writer out, Format format, boolean drumsOnly) {
+        this.out = out;
+        this.format = format;
+        this.drumsOnly = drumsOnly;
+    }
+
+    // Dumps files, and every .mid file inside folders, in name order
+    public void dumpAll(List<Path> inputs) throws IOException {
+        if (format == Format.CSV) {
+            line.setLength(0);
+            line.append("file,track,tick,micros,status,channel,data1,data2,description");
+            writeLine();
+        }
+        for (Path input : inputs) {
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> files = Files.walk(input)) {
+                    for (Path file : files.filter(MidiDump::isMidiFile).sorted().toList())
+                        dumpSafely(file);
+                }
+            } else
+                dumpSafely(input);
+        }
+        out.flush();
+    }
+
+    public static boolean isMidiFile(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        return Files.isRegularFile(path) && (name.endsWith(".mid") || name.endsWith(".midi") || name.endsWith(".rmi"));
+    }
+
+    // One bad file shouldn't stop a whole library dump
+    private void dumpSafely(Path file) throws IOException {
+        try {
+            dump(file);
+        } catch (InvalidMidiDataException | RuntimeException e) {
+            System.err.println("Skipping " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Writes every event of one file
+    public void dump(Path file) throws IOException, InvalidMidiDataException {
+        MidiFile midiFile = MidiFile.load(file);
+        MidiContext context = new MidiContext(midiFile);
+        TempoMap tempoMap = new TempoMap(midiFile);
+        String name = file.toString();
+        int tickDigits = 1 + (int) Math.log10(Math.max(1, midiFile.getTickLength()));
+
+        TrackSettings settings = new TrackSettings(context);
+
+        if (format == Format.TEXT) {
+            line.setLength(0);
+            line.append("===================================================== ").append(name);
+            writeLine();
+        }
+
+        MidiFile.TrackData[] tracks = midiFile.getTracks();
+        for (int t = 0; t < tracks.length; t++) {
+            MidiFile.TrackData track = tracks[t];
+            if (format == Format.TEXT) {
+                line.setLength(0);
+                line.append("Track ").append(t).append(" ( events: ").append(track.size())
+                        .append(",\tlength: ").append(track.ticks()).append(" ticks )");
+                writeLine();
+            }
+
+            for (int i = 0; i < track.size(); i++) {
+                settings.update(midiFile, track, i);
+                int message = track.getMessage(i);
+                if (drumsOnly && PackedMessage.isChannelMessage(message) && PackedMessage.getChannel(message) != 9)
+                    continue;
+
+                description.setLength(0);
+                MIDIFormatter.formatTo(description, settings, midiFile, track, i);
+                long tick = track.getTick(i);
+
+                line.setLength(0);
+                switch (format) {
+                    case TEXT -> {
+                        line.append("t = ");
+                        for (int d = digits(tick); d < tickDigits; d++)
+                            line.append(' ');
+                        line.append(tick).append(" |\t").append(description);
+                    }
+                    case CSV -> {
+                        appendCsv(name);
+                        line.append(',').append(t)
+                                .append(',').append(tick)
+                                .append(',').append(tempoMap.tickToNanos(tick) / 1000)
+                                .append(',').append(PackedMessage.getStatus(message)).append(',');
+                        appendFields(message, ",");
+                        line.append(',');
+                        appendCsv(description);
+                    }
+                    case JSON -> {
+                        line.append("{\"file\":");
+                        appendJson(name);
+                        line.append(",\"track\":").append(t)
+                                .append(",\"tick\":").append(tick)
+                                .append(",\"micros\":").append(tempoMap.tickToNanos(tick) / 1000)
+                                .append(",\"status\":").append(PackedMessage.getStatus(message));
+                        if (PackedMessage.isChannelMessage(message)) {
+                            line.append(",\"channel\":").append(PackedMessage.getChannel(message))
+                                    .append(",\"data1\":").append(PackedMessage.getData1(message))
+                                    .append(",\"data2\":").append(PackedMessage.getData2(message));
+                        }
+                        line.append(",\"text\":");
+                        appendJson(description);
+                        line.append('}');
+                    }
+                }
+                writeLine();
+                eventCount++;
+            }
+        }
+        fileCount++;
+    }
+
+    // channel, data1 & data2 of a channel message, or empty fields for meta/sysex events
+    private void appendFields(int message, String separator) {
+        if (PackedMessage.isChannelMessage(message))
+            line.append(PackedMessage.getChannel(message)).append(separator)
+                    .append(PackedMessage.getData1(message)).append(separator)
+                    .append(PackedMessage.getData2(message));
+        else
+            line.append(separator).append(separator);
+    }
+
+    // Quotes a CSV field if it needs it
+    private void appendCsv(CharSequence field) {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            line.append(field);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"') line.append('"');
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    // Appends a JSON string literal
+    private void appendJson(CharSequence str) {
+        line.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        line.append("\\u00");
+                        line.append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    } else
+                        line.append(c);
+                }
+            }
+        }
+        line.append('"');
+    }
+
+    // Copies the line into the writer through a reused char array (Writer.append would make a String)
+    private void writeLine() throws IOException {
+        line.append('\n');
+        int length = line.length();
+        if (chars.length < length)
+            chars = new char[Math.max(length, chars.length * 2)];
+        line.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+    }
+
+    private static int digits(long num) {
+        int digits = 1;
+        while (num >= 10) {
+            num /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+}
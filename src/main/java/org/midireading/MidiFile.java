@@ -0,0 +1,393 @@
+package org.midireading;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Sequence;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static javax.sound.midi.ShortMessage.*;
+
+// A Standard MIDI File decoded straight from a memory-mapped buffer
+// Every track is stored as flat primitive arrays instead of MidiEvent objects,
+// and meta/sysex payloads are kept as offsets into the mapped file
+public class MidiFile {
+
+    private final ByteBuffer buffer;
+    private final int format;
+    private final float divisionType;
+    private final int resolution;
+    private final int[] trackStarts;    // Where each MTrk chunk's events start & end in the buffer
+    private final int[] trackEnds;
+    private final TrackData[] tracks;   // null if only scanned
+
+    // Maps and decodes the file at the given path
+    public static MidiFile load(String pathname) throws IOException, InvalidMidiDataException {
+        return load(Path.of(pathname));
+    }
+
+    public static MidiFile load(Path path) throws IOException, InvalidMidiDataException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MidiFile(buffer);
+        }
+    }
+
+    // Decodes the header and every MTrk chunk in a single pass over the buffer
+    public MidiFile(ByteBuffer buffer) throws InvalidMidiDataException {
+        this(buffer, true);
+    }
+
+    // Only reads the header & where each track is, without decoding any events
+    // Tracks are then read incrementally through TrackReaders (see SongStream)
+    public static MidiFile scan(ByteBuffer buffer) throws InvalidMidiDataException {
+        return new MidiFile(buffer, false);
+    }
+
+    private MidiFile(ByteBuffer buffer, boolean decode) throws InvalidMidiDataException {
+        buffer = unwrapRmid(buffer);
+        this.buffer = buffer;
+        int limit = buffer.limit();
+
+        if (limit < 14 || buffer.getInt(0) != MTHD)
+            throw new InvalidMidiDataException("Missing MThd header");
+        int headerLength = buffer.getInt(4);
+        format = buffer.getShort(8) & 0xFFFF;
+        int numTracks = buffer.getShort(10) & 0xFFFF;
+        int division = buffer.getShort(12) & 0xFFFF;
+
+        // Upper bit set means SMPTE timing: -frames per second, then ticks per frame
+        if ((division & 0x8000) == 0) {
+            divisionType = Sequence.PPQ;
+            resolution = division;
+        } else {
+            divisionType = switch (-(byte) (division >> 8)) {
+                case 24 -> Sequence.SMPTE_24;
+                case 25 -> Sequence.SMPTE_25;
+                case 29 -> Sequence.SMPTE_30DROP;
+                case 30 -> Sequence.SMPTE_30;
+                default -> throw new InvalidMidiDataException("Unknown SMPTE frame rate: " + -(byte) (division >> 8));
+            };
+            resolution = division & 0xFF;
+        }
+        if (resolution == 0)
+            throw new InvalidMidiDataException("Timing division has a resolution of 0");
+
+        // Walk the chunks, skipping any that aren't tracks
+        int[] starts = new int[numTracks];
+        int[] ends = new int[numTracks];
+        int trackCount = 0;
+        int pos = 8 + headerLength;
+        while (trackCount < numTracks && pos + 8 <= limit) {
+            int id = buffer.getInt(pos);
+            int length = buffer.getInt(pos + 4);
+            int start = pos + 8;
+            int end = start + length;
+            if (length < 0 || end > limit)
+                throw new InvalidMidiDataException("Chunk at " + pos + " runs past end of file");
+            if (id == MTRK) {
+                starts[trackCount] = start;
+                ends[trackCount++] = end;
+            }
+            pos = end;
+        }
+        trackStarts = Arrays.copyOf(starts, trackCount);
+        trackEnds = Arrays.copyOf(ends, trackCount);
+
+        if (!decode) {
+            tracks = null;
+            return;
+        }
+        tracks = new TrackData[trackCount];
+        for (int t = 0; t < trackCount; t++)
+            tracks[t] = decodeTrack(buffer, trackStarts[t], trackEnds[t]);
+    }
+
+    // Decodes a whole MTrk chunk into flat arrays
+    private static TrackData decodeTrack(ByteBuffer buf, int pos, int end) throws InvalidMidiDataException {
+        TrackData track = new TrackData(Math.max(16, (end - pos) / 4));
+        TrackReader reader = new TrackReader(buf, pos, end);
+        while (reader.next()) {
+            if (reader.isPayload())
+                track.addPayload(reader.tick, reader.message, reader.payloadType, reader.payloadOffset, reader.payloadLength);
+            else
+                track.add(reader.tick, reader.message);
+        }
+        track.trim();
+        return track;
+    }
+
+    // Decodes one MTrk chunk an event at a time: delta times, running status, and meta/sysex payload locations
+    public static class TrackReader {
+        private final ByteBuffer buf;
+        private final int end;
+        private int pos;
+        private int runningStatus;
+
+        // The current event
+        private long tick;
+        private int message;            // Packed channel message, or just the status of a meta/sysex event
+        private int payloadType;
+        private int payloadOffset;
+        private int payloadLength;
+
+        public TrackReader(ByteBuffer buf, int pos, int end) {
+            this.buf = buf;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        // Decodes the next event, returns false at the end of the track
+        public boolean next() throws InvalidMidiDataException {
+            if (pos >= end)
+                return false;
+
+            tick += readVarLength();
+
+            if (pos >= end)
+                throw new InvalidMidiDataException("Track ends mid-event");
+
+            int status = buf.get(pos) & 0xFF;
+            if (status >= 0x80)
+                pos++;
+            else if (runningStatus != 0)
+                status = runningStatus;
+            else
+                throw new InvalidMidiDataException("Data byte with no running status at " + pos);
+
+            if (status == PackedMessage.META || status == PackedMessage.SYSEX || status == PackedMessage.SYSEX_ESCAPE) {
+                int type = status;
+                if (status == PackedMessage.META) {
+                    if (pos >= end)
+                        throw new InvalidMidiDataException("Track ends mid-event");
+                    type = buf.get(pos++) & 0xFF;
+                }
+
+                int length = readVarLength();
+                if (length < 0 || length > end - pos)
+                    throw new InvalidMidiDataException("Meta/sysex payload runs past end of track");
+                message = status;
+                payloadType = type;
+                payloadOffset = pos;
+                payloadLength = length;
+                pos += length;
+                // Meta & sysex events cancel running status
+                runningStatus = 0;
+
+            } else if (status < 0xF0) {
+                int command = status & 0xF0;
+                int dataBytes = command == PROGRAM_CHANGE || command == CHANNEL_PRESSURE ? 1 : 2;
+                if (pos + dataBytes > end)
+                    throw new InvalidMidiDataException("Track ends mid-event");
+                int data1 = buf.get(pos++) & 0x7F;
+                int data2 = dataBytes == 2 ? buf.get(pos++) & 0x7F : 0;
+                message = PackedMessage.pack(status, data1, data2);
+                runningStatus = status;
+
+            } else {
+                throw new InvalidMidiDataException(String.format("Unexpected status %02X in track", status));
+            }
+            return true;
+        }
+
+        // Reads a variable-length quantity, which the spec limits to 4 bytes (so it's never negative)
+        private int readVarLength() throws InvalidMidiDataException {
+            int value = 0;
+            for (int i = 0; i < MAX_VAR_LENGTH_BYTES; i++) {
+                if (pos >= end)
+                    throw new InvalidMidiDataException("Track ends mid-event");
+                int b = buf.get(pos++) & 0xFF;
+                value = (value << 7) | (b & 0x7F);
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new InvalidMidiDataException("Variable-length quantity longer than 4 bytes at " + pos);
+        }
+
+        public boolean isPayload() {
+            return !PackedMessage.isChannelMessage(message);
+        }
+
+        public long getTick() {
+            return tick;
+        }
+
+        public int getMessage() {
+            return message;
+        }
+
+        // Meta type (for meta events) or status byte (for sysex) of the current event
+        public int getPayloadType() {
+            return payloadType;
+        }
+
+        public int getPayloadOffset() {
+            return payloadOffset;
+        }
+
+        public int getPayloadLength() {
+            return payloadLength;
+        }
+    }
+
+    // RIFF-wrapped MIDI (.rmi, e.g. ChopSuey.mid) keeps the SMF inside its "data" chunk
+    private static ByteBuffer unwrapRmid(ByteBuffer buffer) throws InvalidMidiDataException {
+        if (buffer.limit() < 12 || buffer.getInt(0) != RIFF || buffer.getInt(8) != RMID)
+            return buffer;
+
+        // RIFF chunk sizes are little-endian and chunks are padded to even lengths
+        int pos = 12;
+        while (pos + 8 <= buffer.limit()) {
+            int length = Integer.reverseBytes(buffer.getInt(pos + 4));
+            if (buffer.getInt(pos) == DATA)
+                return buffer.slice(pos + 8, Math.min(length, buffer.limit() - pos - 8));
+            pos += 8 + length + (length & 1);
+        }
+        throw new InvalidMidiDataException("RMID file has no data chunk");
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    // Shared mapped buffer; only use absolute get methods on it
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    // Same constants as Sequence.getDivisionType()
+    public float getDivisionType() {
+        return divisionType;
+    }
+
+    // Ticks per quarter note (PPQ) or ticks per frame (SMPTE)
+    public int getResolution() {
+        return resolution;
+    }
+
+    public TrackData[] getTracks() {
+        if (tracks == null)
+            throw new IllegalStateException("Tracks of a scanned MidiFile aren't decoded, use getTrackReader");
+        return tracks;
+    }
+
+    public int getTrackCount() {
+        return trackStarts.length;
+    }
+
+    // A fresh reader over one track's events
+    public TrackReader getTrackReader(int track) {
+        return new TrackReader(buffer, trackStarts[track], trackEnds[track]);
+    }
+
+    // Length of the longest track in ticks
+    public long getTickLength() {
+        long length = 0;
+        for (TrackData track : getTracks())
+            length = Math.max(length, track.ticks());
+        return length;
+    }
+
+    // Returns a string from a text meta event's payload (one char per byte, like textEvent)
+    public String getText(TrackData track, int index) {
+        int offset = track.getPayloadOffset(index);
+        int length = track.getPayloadLength(index);
+        return MIDIFormatter.textEvent(buffer, offset, length);
+    }
+
+    // The events of a single MTrk chunk as parallel arrays
+    public static class TrackData {
+        private long[] ticks;
+        private int[] messages;
+        private int size;
+
+        // Meta & sysex payloads (indexed by PackedMessage.getPayloadIndex)
+        private int[] payloadTypes;
+        private int[] payloadOffsets;
+        private int[] payloadLengths;
+        private int payloadCount;
+
+        private TrackData(int capacity) {
+            ticks = new long[capacity];
+            messages = new int[capacity];
+            payloadTypes = new int[8];
+            payloadOffsets = new int[8];
+            payloadLengths = new int[8];
+        }
+
+        private void add(long tick, int message) {
+            if (size == messages.length) {
+                ticks = Arrays.copyOf(ticks, size * 2);
+                messages = Arrays.copyOf(messages, size * 2);
+            }
+            ticks[size] = tick;
+            messages[size++] = message;
+        }
+
+        private void addPayload(long tick, int status, int type, int offset, int length) {
+            if (payloadCount == payloadTypes.length) {
+                payloadTypes = Arrays.copyOf(payloadTypes, payloadCount * 2);
+                payloadOffsets = Arrays.copyOf(payloadOffsets, payloadCount * 2);
+                payloadLengths = Arrays.copyOf(payloadLengths, payloadCount * 2);
+            }
+            payloadTypes[payloadCount] = type;
+            payloadOffsets[payloadCount] = offset;
+            payloadLengths[payloadCount] = length;
+            add(tick, status | payloadCount << 8);
+            payloadCount++;
+        }
+
+        // Drops the unused tail of each array once decoding is done
+        private void trim() {
+            ticks = Arrays.copyOf(ticks, size);
+            messages = Arrays.copyOf(messages, size);
+            payloadTypes = Arrays.copyOf(payloadTypes, payloadCount);
+            payloadOffsets = Arrays.copyOf(payloadOffsets, payloadCount);
+            payloadLengths = Arrays.copyOf(payloadLengths, payloadCount);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        // Tick of the last event in the track
+        public long ticks() {
+            return size == 0 ? 0 : ticks[size - 1];
+        }
+
+        public long getTick(int index) {
+            return ticks[index];
+        }
+
+        public int getMessage(int index) {
+            return messages[index];
+        }
+
+        // Meta type (for meta events) or status byte (for sysex) of the event at index
+        public int getPayloadType(int index) {
+            return payloadTypes[PackedMessage.getPayloadIndex(messages[index])];
+        }
+
+        // Absolute offset of the event's payload in the mapped buffer
+        public int getPayloadOffset(int index) {
+            return payloadOffsets[PackedMessage.getPayloadIndex(messages[index])];
+        }
+
+        public int getPayloadLength(int index) {
+            return payloadLengths[PackedMessage.getPayloadIndex(messages[index])];
+        }
+    }
+
+    private static final int MTHD = 0x4D546864;  // "MThd"
+    private static final int MTRK = 0x4D54726B;  // "MTrk"
+    private static final int RIFF = 0x52494646;  // "RIFF"
+    private static final int RMID = 0x524D4944;  // "RMID"
+    private static final int DATA = 0x64617461;  // "data"
+    private static final int MAX_VAR_LENGTH_BYTES = 4;
+}
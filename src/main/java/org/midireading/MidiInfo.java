@@ -1,24 +1,22 @@
 package org.midireading;
 
-import javax.sound.midi.*;
-import java.io.File;
+import javax.sound.midi.Sequence;
 
 public class MidiInfo {
 
     public static void main(String[] args) throws Exception {
 
-        Sequence sequence = MidiSystem.getSequence(new File("src/main/resources/Numb.mid"));
-        MIDIFormatter formatter = MIDIFormatter.getInstance();
-        formatter.setupFormatter(sequence);
+        MidiFile midiFile = MidiFile.load("src/main/resources/Numb.mid");
+        MidiContext context = new MidiContext(midiFile);
 
-        System.out.println("resolution: " + sequence.getResolution());
-        System.out.println("div type: " + sequence.getDivisionType());
-        if (sequence.getDivisionType() == Sequence.PPQ)
+        System.out.println("resolution: " + midiFile.getResolution());
+        System.out.println("div type: " + midiFile.getDivisionType());
+        if (midiFile.getDivisionType() == Sequence.PPQ)
             System.out.println("PPQ");
         else
-            throw new RuntimeException("Non-PPQ timing is not supported!");
+            System.out.println("SMPTE, " + MidiContext.framesPerSecond(midiFile.getDivisionType()) + " fps");
 
-        int tickDigits = 1 + (int)Math.log10(sequence.getTickLength());
+        int tickDigits = 1 + (int)Math.log10(midiFile.getTickLength());
 
         /*
         TODO  o----------------------------------------o
@@ -27,14 +25,13 @@ public class MidiInfo {
         TODO  o----------------------------------------o
         */
 
-        TrackSettings settings = new TrackSettings();
-        formatter.setTrackSettings(settings);
+        TrackSettings settings = new TrackSettings(context);
 
         long prevTick = 0;
 
         // Iterate through tracks
-        for (int i = 0; i < sequence.getTracks().length; i++) {
-            Track track = sequence.getTracks()[i];
+        for (int i = 0; i < midiFile.getTracks().length; i++) {
+            MidiFile.TrackData track = midiFile.getTracks()[i];
             System.out.println("=====================================================");
             System.out.println("Track " + i + ": size = " + track.size());
             System.out.printf("Track %d ( events: %d,\tlength: %d ticks )\n", i, track.size(), track.ticks());
@@ -43,22 +40,24 @@ public class MidiInfo {
 
             // Iterate through each event in track
             for (int j = 0; j < track.size(); j++) {
-                MidiEvent event = track.get(j);
-                MidiMessage message = event.getMessage();
+                int message = track.getMessage(j);
+                long tick = track.getTick(j);
 
-                settings.update(message);
+                settings.update(midiFile, track, j);
 
-                if (message instanceof ShortMessage s && s.getChannel() != 9)
+                if (PackedMessage.isChannelMessage(message) && PackedMessage.getChannel(message) != 9)
                     continue;
 
-                if (event.getTick() > prevTick)
-                    System.out.printf("t = %" + tickDigits + "d |\t", event.getTick());
+                if (tick > prevTick)
+                    System.out.printf("t = %" + tickDigits + "d |\t", tick);
                 else
                     System.out.print(centerString(5 + tickDigits, "...") + "|\t");
 
-                System.out.println(formatter.formatMidiMessage(message));
+                StringBuilder description = new StringBuilder();
+                MIDIFormatter.formatTo(description, settings, midiFile, track, j);
+                System.out.println(description);
 
-                prevTick = event.getTick();
+                prevTick = tick;
             }
             System.out.println("=====================================================\n");
         }
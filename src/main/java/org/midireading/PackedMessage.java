@@ -0,0 +1,63 @@
+package org.midireading;
+
+// Static helpers for the packed int form of a MIDI event used by MidiFile
+//  - Channel messages:   status | data1 << 8 | data2 << 16
+//  - Meta/sysex events:  status | payloadIndex << 8 (payload kept in the mapped file)
+public final class PackedMessage {
+
+    private PackedMessage() {}
+
+    // Packs a channel message into a single int
+    public static int pack(int status, int data1, int data2) {
+        return (status & 0xFF) | (data1 & 0xFF) << 8 | (data2 & 0xFF) << 16;
+    }
+
+    public static int getStatus(int message) {
+        return message & 0xFF;
+    }
+
+    // Upper nibble of the status byte (NOTE_ON, CONTROL_CHANGE, etc)
+    public static int getCommand(int message) {
+        return message & 0xF0;
+    }
+
+    public static int getChannel(int message) {
+        return message & 0x0F;
+    }
+
+    public static int getData1(int message) {
+        return (message >>> 8) & 0xFF;
+    }
+
+    public static int getData2(int message) {
+        return (message >>> 16) & 0xFF;
+    }
+
+    // Index into the owning track's payload table (meta & sysex events only)
+    public static int getPayloadIndex(int message) {
+        return message >>> 8;
+    }
+
+    public static boolean isChannelMessage(int message) {
+        int status = message & 0xFF;
+        return status >= 0x80 && status < 0xF0;
+    }
+
+    public static boolean isMeta(int message) {
+        return (message & 0xFF) == META;
+    }
+
+    public static boolean isSysex(int message) {
+        int status = message & 0xFF;
+        return status == SYSEX || status == SYSEX_ESCAPE;
+    }
+
+    // A NOTE_ON with velocity 0 is treated as a NOTE_OFF by most files
+    public static boolean isNoteOn(int message) {
+        return (message & 0xF0) == 0x90 && getData2(message) != 0;
+    }
+
+    public static final int META = 0xFF;
+    public static final int SYSEX = 0xF0;
+    public static final int SYSEX_ESCAPE = 0xF7;
+}
@@ -0,0 +1,215 @@
+package org.midireading;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.util.Arrays;
+
+import static org.midireading.TrackSettings.metaTypes.SET_TEMPO;
+
+// Piecewise-constant tempo of a whole song, built once from every SET_TEMPO event
+// Each segment keeps its start tick, tempo, and the nanoseconds elapsed before it,
+// so converting between ticks & nanoseconds is a binary search plus one multiply
+//
+// A tick lasts rates[segment] / rateDivisor nanoseconds: tempo * 1000 / resolution for PPQ songs,
+// and the same fixed fraction in every segment for SMPTE songs (whose tempo events are only for display)
+public class TempoMap {
+
+    private final MidiContext context;
+    private final int resolution;       // Ticks per quarter note (PPQ) or per frame (SMPTE)
+    private final long rateDivisor;
+    private long[] ticks;               // Start tick of each segment
+    private long[] nanos;               // Nanoseconds elapsed at the start of each segment
+    private int[] tempos;               // Microseconds per quarter note within each segment
+    private long[] rates;               // Nanoseconds per tick within each segment, times rateDivisor
+
+    // Collects tempo changes from every track of a MidiFile
+    public TempoMap(MidiFile midiFile) {
+        this(midiFile.getDivisionType(), midiFile.getResolution());
+
+        int count = 0;
+        for (MidiFile.TrackData track : midiFile.getTracks())
+            for (int i = 0; i < track.size(); i++)
+                if (isTempo(track, i)) count++;
+
+        long[] eventTicks = new long[count];
+        int[] eventTempos = new int[count];
+        count = 0;
+        for (MidiFile.TrackData track : midiFile.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                if (!isTempo(track, i)) continue;
+                eventTicks[count] = track.getTick(i);
+                eventTempos[count++] = MIDIFormatter.bytesToNum(midiFile.getBuffer(), track.getPayloadOffset(i), 3);
+            }
+        }
+        build(eventTicks, eventTempos);
+    }
+
+    // Same as above, for a Sequence loaded through javax.sound.midi
+    public TempoMap(Sequence sequence) {
+        this(sequence.getDivisionType(), sequence.getResolution());
+
+        long[] eventTicks = new long[8];
+        int[] eventTempos = new int[8];
+        int count = 0;
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                if (!(event.getMessage() instanceof MetaMessage meta) || meta.getType() != SET_TEMPO
+                        || meta.getData().length < 3)
+                    continue;
+                if (count == eventTicks.length) {
+                    eventTicks = Arrays.copyOf(eventTicks, count * 2);
+                    eventTempos = Arrays.copyOf(eventTempos, count * 2);
+                }
+                eventTicks[count] = event.getTick();
+                eventTempos[count++] = MIDIFormatter.bytesToNum(meta.getData(), 0, 3);
+            }
+        }
+        build(Arrays.copyOf(eventTicks, count), Arrays.copyOf(eventTempos, count));
+    }
+
+    // Rebuilds a tempo map from its segment arrays (see SongFile)
+    public TempoMap(float divisionType, int resolution, long[] ticks, long[] nanos, int[] tempos) {
+        this(divisionType, resolution);
+        this.ticks = ticks;
+        this.nanos = nanos;
+        this.tempos = tempos;
+        buildRates();
+    }
+
+    private TempoMap(float divisionType, int resolution) {
+        context = new MidiContext(divisionType, resolution);
+        this.resolution = resolution;
+        rateDivisor = context.isSmpte() ? context.getTickNanosDenominator() : resolution;
+    }
+
+    private void buildRates() {
+        rates = new long[tempos.length];
+        for (int i = 0; i < rates.length; i++)
+            rates[i] = context.isSmpte() ? context.getTickNanosNumerator() : tempos[i] * 1000L;
+    }
+
+    private static boolean isTempo(MidiFile.TrackData track, int index) {
+        return PackedMessage.isMeta(track.getMessage(index))
+                && track.getPayloadType(index) == SET_TEMPO
+                && track.getPayloadLength(index) >= 3;
+    }
+
+    // Sorts tempo events by tick and accumulates the nanosecond offset of each segment
+    private void build(long[] eventTicks, int[] eventTempos) {
+        // Stable insertion sort, events are almost always already in order (conductor track)
+        for (int i = 1; i < eventTicks.length; i++) {
+            long tick = eventTicks[i];
+            int tempo = eventTempos[i];
+            int j = i - 1;
+            for (; j >= 0 && eventTicks[j] > tick; j--) {
+                eventTicks[j + 1] = eventTicks[j];
+                eventTempos[j + 1] = eventTempos[j];
+            }
+            eventTicks[j + 1] = tick;
+            eventTempos[j + 1] = tempo;
+        }
+
+        // Songs start at 120 BPM until told otherwise
+        ticks = new long[eventTicks.length + 1];
+        tempos = new int[eventTicks.length + 1];
+        ticks[0] = 0;
+        tempos[0] = DEFAULT_TEMPO;
+        int size = 1;
+        for (int i = 0; i < eventTicks.length; i++) {
+            // Later events on the same tick replace earlier ones, a tempo of 0 (no time per beat) is ignored
+            if (eventTempos[i] <= 0)
+                continue;
+            if (eventTicks[i] == ticks[size - 1])
+                tempos[size - 1] = eventTempos[i];
+            else {
+                ticks[size] = eventTicks[i];
+                tempos[size++] = eventTempos[i];
+            }
+        }
+        ticks = Arrays.copyOf(ticks, size);
+        tempos = Arrays.copyOf(tempos, size);
+        buildRates();
+
+        nanos = new long[size];
+        for (int i = 1; i < size; i++)
+            nanos[i] = nanos[i - 1] + segmentNanos(i - 1, ticks[i] - ticks[i - 1]);
+    }
+
+    // Nanoseconds taken by a number of ticks within a segment
+    private long segmentNanos(int segment, long deltaTicks) {
+        return deltaTicks * rates[segment] / rateDivisor;
+    }
+
+    // Index of the segment containing a tick
+    private int segmentOfTick(long tick) {
+        int index = Arrays.binarySearch(ticks, tick);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    // Index of the segment containing a time in nanoseconds
+    private int segmentOfNanos(long songNanos) {
+        int index = Arrays.binarySearch(nanos, songNanos);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    // Converts a tick into nanoseconds since the start of the song
+    public long tickToNanos(long tick) {
+        int segment = segmentOfTick(tick);
+        return nanos[segment] + segmentNanos(segment, tick - ticks[segment]);
+    }
+
+    // Converts nanoseconds since the start of the song into the tick playing at that moment
+    public long nanosToTick(long songNanos) {
+        int segment = segmentOfNanos(songNanos);
+        return ticks[segment] + (songNanos - nanos[segment]) * rateDivisor / rates[segment];
+    }
+
+    // Tempo in microseconds per quarter note at a given tick
+    public int getTempoAt(long tick) {
+        return tempos[segmentOfTick(tick)];
+    }
+
+    public int getBpmAt(long tick) {
+        return MIDIFormatter.tempoToBPM(getTempoAt(tick));
+    }
+
+    // Length of a quarter note starting at a given tick
+    // (SMPTE songs only know the tempo, not how many ticks a quarter note takes)
+    public long getBeatNanos(long tick) {
+        if (context.isSmpte())
+            return getTempoAt(tick) * 1000L;
+        return tickToNanos(tick + resolution) - tickToNanos(tick);
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public float getDivisionType() {
+        return context.getDivisionType();
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public int getSegmentCount() {
+        return ticks.length;
+    }
+
+    public long getSegmentTick(int segment) {
+        return ticks[segment];
+    }
+
+    public long getSegmentNanos(int segment) {
+        return nanos[segment];
+    }
+
+    public int getSegmentTempo(int segment) {
+        return tempos[segment];
+    }
+
+    // Songs start at 120 BPM until told otherwise
+    public static final int DEFAULT_TEMPO = 500_000;
+}
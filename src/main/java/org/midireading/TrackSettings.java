@@ -2,7 +2,9 @@ package org.midireading;
 
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
+import java.nio.ByteBuffer;
 import java.time.LocalTime;
 
 public class TrackSettings {
@@ -30,18 +32,27 @@ public class TrackSettings {
         public static final int SEQUENCER_SPECIFIC = 0x7F;
     }
 
+    private final MidiContext context;  // Timing of the song this track belongs to
+
     /*              META EVENT DATA            */
     private String name;                // Name of current track
     private String instrument;          // Name of current instrument
     private int channel;                // Messages between updates are in this channel
     private long nanosPerTick = 1;      // Used for timings
     private int bpm;                    // Mostly for display
-    private LocalTime offset = LocalTime.now();     // idk how to use this one
+    // SMPTE time at which the track starts, i.e. the timecode of the song's tick 0 when it's synced to other gear
+    // (format 0 & 1 files may only have one, before any event), so it's shown but doesn't delay playback
+    private long offsetNanos;
+    private float offsetFrameRate;      // Frame rate the offset was given in (a Sequence division type)
     private int timeSigNum;             // Number of Nth-notes in a bar (6 in 6/8)
     private int timeSigType;            // Type of notes in a bar (8 in 6/8)
     private int keyNote;                // Ranges from 7 flats to 7 sharps around C major
     private boolean majorKey;           // false -> minor key
 
+    public TrackSettings(MidiContext context) {
+        this.context = context;
+    }
+
     // General update method for a MidiMessage
     public void update(MidiMessage message) {
         if (message instanceof MetaMessage mt)
@@ -50,47 +61,61 @@ public class TrackSettings {
             channel = sm.getChannel();
     }
 
+    // Same as above, for an event of a MidiFile's flat track data
+    public void update(MidiFile midiFile, MidiFile.TrackData track, int index) {
+        int message = track.getMessage(index);
+        if (PackedMessage.isMeta(message))
+            updateMetaData(track.getPayloadType(index), midiFile.getBuffer(),
+                    track.getPayloadOffset(index), track.getPayloadLength(index));
+        else if (PackedMessage.isChannelMessage(message))
+            channel = PackedMessage.getChannel(message);
+    }
+
     // Updates data given a MetaMessage
     public void updateMetaData(MetaMessage mess) {
-        byte[] bytes = mess.getMessage();
-        int type = bytes[1];
+        byte[] data = mess.getData();
+        updateMetaData(mess.getType(), ByteBuffer.wrap(data), 0, data.length);
+    }
+
+    // Updates data given a meta event's type and the location of its payload
+    public void updateMetaData(int type, ByteBuffer bytes, int start, int length) {
         switch (type) {
             case metaTypes.TRACK_NAME:
-                name = MIDIFormatter.textEvent(bytes);
+                name = MIDIFormatter.textEvent(bytes, start, length);
                 break;
 
             case metaTypes.INSTRUMENT_NAME:
-                instrument = MIDIFormatter.textEvent(bytes);
+                instrument = MIDIFormatter.textEvent(bytes, start, length);
                 break;
 
             case metaTypes.CHANNEL_PREFIX:
-                channel = bytes[3];
+                channel = bytes.get(start);
                 break;
 
             case metaTypes.SET_TEMPO:
-                int tempo = MIDIFormatter.bytesToNum(bytes, 3, 3);
-                nanosPerTick = MIDIFormatter.getInstance().tempoToNanosPerTick(tempo);
+                int tempo = MIDIFormatter.bytesToNum(bytes, start, 3);
+                nanosPerTick = context.tempoToNanosPerTick(tempo);
                 bpm = MIDIFormatter.tempoToBPM(tempo);
                 break;
 
             case metaTypes.SMPTE_OFFSET:
-                // i have no idea what to do with the fractional frames into nanoseconds
-                // doesnt matter if PPQ (:
-                offset = LocalTime.of(
-                        MIDIFormatter.bcd(bytes[3]),
-                        MIDIFormatter.bcd(bytes[4]),
-                        MIDIFormatter.bcd(bytes[5])
-                );
+                // hr byte is 0rrhhhhh, rr being the frame rate; then minutes, seconds, frames, 1/100s of a frame
+                if (length < 5) break;
+                int hours = bytes.get(start);
+                offsetFrameRate = SMPTE_RATES[(hours >> 5) & 0x3];
+                long hundredthFrames = bytes.get(start + 3) * 100L + bytes.get(start + 4);
+                offsetNanos = (((hours & 0x1F) * 60L + bytes.get(start + 1)) * 60L + bytes.get(start + 2)) * NANOS_PER_SEC
+                        + (long) (hundredthFrames * NANOS_PER_SEC / (100 * MidiContext.framesPerSecond(offsetFrameRate)));
                 break;
 
             case metaTypes.TIME_SIGNATURE:
-                timeSigNum = bytes[3];
-                timeSigType = 1 << bytes[4];
+                timeSigNum = bytes.get(start);
+                timeSigType = 1 << bytes.get(start + 1);
                 break;
 
             case metaTypes.KEY_SIGNATURE:
-                keyNote = bytes[3];
-                majorKey = bytes[4] == 0;
+                keyNote = bytes.get(start);
+                majorKey = bytes.get(start + 1) == 0;
                 break;
         }
     }
@@ -125,8 +150,16 @@ public class TrackSettings {
         return bpm;
     }
 
+    public long getOffsetNanos() {
+        return offsetNanos;
+    }
+
+    public float getOffsetFrameRate() {
+        return offsetFrameRate;
+    }
+
     public LocalTime getOffset() {
-        return offset;
+        return LocalTime.ofNanoOfDay(offsetNanos % NANOS_PER_DAY);
     }
 
     public int getTimeSigNum() {
@@ -137,10 +170,23 @@ public class TrackSettings {
         return timeSigType;
     }
 
+    public int getKeyNote() {
+        return keyNote;
+    }
+
+    public boolean isMajorKey() {
+        return majorKey;
+    }
+
     public String getKey() {
         return "Key of " + (
                 keyNote == 0 ? "C" : Math.abs(keyNote) + (
                         keyNote > 0 ? " sharps" : " flats")
         ) + (majorKey ? " (Major)" : " (Minor)");
     }
+
+    private static final long NANOS_PER_SEC = 1_000_000_000L;
+    private static final long NANOS_PER_DAY = 86_400L * NANOS_PER_SEC;
+    // Frame rates of the rr bits of an SMPTE offset
+    private static final float[] SMPTE_RATES = {Sequence.SMPTE_24, Sequence.SMPTE_25, Sequence.SMPTE_30DROP, Sequence.SMPTE_30};
 }
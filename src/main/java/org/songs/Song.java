@@ -0,0 +1,139 @@
+package org.songs;
+
+import org.audio.PlaybackTimeline;
+import org.midireading.MeterMap;
+import org.midireading.MidiFile;
+import org.midireading.TempoMap;
+import org.visuals.DrumChart;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+
+// Everything playback & the visualizer need from a MIDI file, already converted
+//
+// A streamed song (see SongStream) is playable before it's fully decoded: its timeline grows,
+// its tempo map covers what's decoded so far, and its drum chart & length only exist once it's complete
+public final class Song {
+
+    private volatile TempoMap tempoMap;
+    private volatile MeterMap meterMap;
+    private final PlaybackTimeline timeline;
+    private volatile DrumChart drumChart;   // null until a streamed song is complete
+    private volatile long endNanos;         // Song time of the end of the longest track (Long.MAX_VALUE until known)
+    private final CompletableFuture<Song> completion;
+    private Exception failure;
+
+    // Compiles a decoded MidiFile
+    public Song(MidiFile midiFile) {
+        tempoMap = new TempoMap(midiFile);
+        meterMap = new MeterMap(midiFile, tempoMap);
+        timeline = new PlaybackTimeline(midiFile, tempoMap);
+        drumChart = new DrumChart(timeline);
+        endNanos = tempoMap.tickToNanos(midiFile.getTickLength());
+        completion = CompletableFuture.completedFuture(this);
+    }
+
+    public Song(TempoMap tempoMap, MeterMap meterMap, PlaybackTimeline timeline, DrumChart drumChart, long endNanos) {
+        this.tempoMap = tempoMap;
+        this.meterMap = meterMap;
+        this.timeline = timeline;
+        this.drumChart = drumChart;
+        this.endNanos = endNanos;
+        completion = CompletableFuture.completedFuture(this);
+    }
+
+    // Streamed song, filled in by a SongStream
+    Song(TempoMap tempoMap, MeterMap meterMap, PlaybackTimeline timeline) {
+        this.tempoMap = tempoMap;
+        this.meterMap = meterMap;
+        this.timeline = timeline;
+        endNanos = Long.MAX_VALUE;
+        completion = new CompletableFuture<>();
+    }
+
+    /*=============== Streaming (SongStream only) ===============*/
+
+    void setTempoMap(TempoMap tempoMap) {
+        this.tempoMap = tempoMap;
+    }
+
+    void setMeterMap(MeterMap meterMap) {
+        this.meterMap = meterMap;
+    }
+
+    // Wakes up anyone waiting for the timeline to be ready
+    synchronized void published() {
+        notifyAll();
+    }
+
+    synchronized void complete(TempoMap tempoMap, MeterMap meterMap, DrumChart drumChart, long endNanos) {
+        this.tempoMap = tempoMap;
+        this.meterMap = meterMap;
+        this.endNanos = endNanos;
+        this.drumChart = drumChart;
+        notifyAll();
+        completion.complete(this);
+    }
+
+    synchronized void fail(Exception e) {
+        failure = e;
+        notifyAll();
+        completion.completeExceptionally(e);
+    }
+
+    // Blocks until every event up to a song time can be played
+    public synchronized void awaitReady(long songNanos) throws InvalidMidiDataException, InterruptedException {
+        while (failure == null && timeline.getReadyNanos() < songNanos)
+            wait();
+        if (failure instanceof InvalidMidiDataException invalid) throw invalid;
+        if (failure instanceof RuntimeException runtime) throw runtime;
+        // Anything else (e.g. the mapped read failing) still mustn't pass for a song that's ready
+        if (failure instanceof IOException io) throw new UncheckedIOException("Failed to stream song", io);
+        if (failure != null) throw new IllegalStateException("Failed to stream song", failure);
+    }
+
+    // Approximate heap used by the song's arrays, for SongCache's budget
+    public long getByteSize() {
+        return tempoMap.getSegmentCount() * 20L + meterMap.getSegmentCount() * 20L
+                + timeline.size() * 20L
+                + drumChart.size() * 13L + (drumChart.getLeftCount() + drumChart.getRightCount()) * 4L
+                + OVERHEAD_BYTES;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public TempoMap getTempoMap() {
+        return tempoMap;
+    }
+
+    // Time signatures & bar lines
+    public MeterMap getMeterMap() {
+        return meterMap;
+    }
+
+    public PlaybackTimeline getTimeline() {
+        return timeline;
+    }
+
+    public DrumChart getDrumChart() {
+        return drumChart;
+    }
+
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    public boolean isComplete() {
+        return drumChart != null;
+    }
+
+    // Completes once a streamed song is fully decoded (already complete for any other song)
+    public CompletableFuture<Song> getCompletion() {
+        return completion;
+    }
+
+    // Object headers & array headers of one song, roughly
+    private static final long OVERHEAD_BYTES = 512;
+}
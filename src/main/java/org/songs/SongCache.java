@@ -0,0 +1,228 @@
+package org.songs;
+
+import org.midireading.MidiDump;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Bounded in-memory cache of loaded songs, evicting the least recently used once over its byte budget
+// Songs that are likely to be played next can be prefetched on a background thread
+public class SongCache implements AutoCloseable {
+
+    private final SongCompiler compiler;
+    private final long maxBytes;
+    private final ExecutorService prefetcher;
+
+    // Access-ordered, so iteration starts at the least recently used song
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Songs currently being loaded, so a get() during a prefetch waits instead of loading twice
+    private final Map<Path, CompletableFuture<Song>> loading = new HashMap<>();
+    private long sizeBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public SongCache(long maxBytes) {
+        this(new SongCompiler(), maxBytes);
+    }
+
+    public SongCache(SongCompiler compiler, long maxBytes) {
+        this.compiler = compiler;
+        this.maxBytes = maxBytes;
+        prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS,
+                Thread.ofPlatform().daemon().name("song-prefetch-", 0).factory());
+    }
+
+    // Returns a song, loading it (through the compiled song cache) if it isn't in memory
+    public Song get(Path midiPath) throws IOException, InvalidMidiDataException {
+        Path key = midiPath.toAbsolutePath().normalize();
+        long modified = Files.getLastModifiedTime(key).toMillis();
+
+        CompletableFuture<Song> future;
+        boolean owner = false;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.modified == modified) {
+                hits++;
+                return entry.song;
+            }
+            misses++;
+
+            future = loading.get(key);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                loading.put(key, future);
+                owner = true;
+            }
+        }
+
+        // Someone else is already loading it
+        if (!owner) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException io) throw io;
+                if (e.getCause() instanceof InvalidMidiDataException invalid) throw invalid;
+                throw e;
+            }
+        }
+
+        try {
+            Song song = compiler.load(key);
+            synchronized (this) {
+                put(key, new Entry(song, modified));
+                loading.remove(key);
+            }
+            future.complete(song);
+            return song;
+        } catch (IOException | InvalidMidiDataException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // Like get, but a song that isn't in memory is streamed (see SongStream) so it can start playing
+    // before it's fully decoded; it joins the cache once complete
+    public Song stream(Path midiPath) throws IOException, InvalidMidiDataException {
+        Path key = midiPath.toAbsolutePath().normalize();
+        long modified = Files.getLastModifiedTime(key).toMillis();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.modified == modified) {
+                hits++;
+                return entry.song;
+            }
+            misses++;
+        }
+
+        Song song = compiler.stream(key);
+        song.getCompletion().thenAccept(complete -> {
+            synchronized (this) {
+                put(key, new Entry(complete, modified));
+            }
+        });
+        return song;
+    }
+
+    // Loads songs in the background so a later get() is instant
+    public void prefetch(Path... midiPaths) {
+        for (Path midiPath : midiPaths) {
+            if (contains(midiPath)) continue;
+            prefetcher.execute(() -> {
+                try {
+                    get(midiPath);
+                } catch (IOException | InvalidMidiDataException e) {
+                    // Nothing is waiting on a prefetch, a failing song will fail again on get()
+                    System.err.println("Could not prefetch " + midiPath + ": " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    // Prefetches the songs next to one in its folder (in name order, up to count after & count before it, nearest first),
+    // the ones likely to be picked next; the folder is listed on the prefetch thread too
+    public void prefetchNeighbours(Path midiPath, int count) {
+        Path song = midiPath.toAbsolutePath().normalize();
+        prefetcher.execute(() -> {
+            List<Path> files;
+            try (var list = Files.list(song.getParent())) {
+                files = list.filter(MidiDump::isMidiFile).map(p -> p.toAbsolutePath().normalize()).sorted().toList();
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Could not list songs next to " + song + ": " + e.getMessage());
+                return;
+            }
+            int index = files.indexOf(song);
+            if (index < 0) return;
+            List<Path> neighbours = new ArrayList<>();
+            for (int i = 1; i <= count; i++) {
+                if (index + i < files.size()) neighbours.add(files.get(index + i));
+                if (index - i >= 0) neighbours.add(files.get(index - i));
+            }
+            prefetch(neighbours.toArray(Path[]::new));
+        });
+    }
+
+    public synchronized boolean contains(Path midiPath) {
+        return entries.containsKey(midiPath.toAbsolutePath().normalize());
+    }
+
+    // Adds an entry and evicts least recently used songs until back under the limit
+    // (the newest song is always kept, even if it's bigger than the whole budget)
+    private void put(Path key, Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null)
+            sizeBytes -= old.song.getByteSize();
+        sizeBytes += entry.song.getByteSize();
+
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && entries.size() > 1) {
+            Map.Entry<Path, Entry> eldest = it.next();
+            sizeBytes -= eldest.getValue().song.getByteSize();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    @Override
+    public void close() {
+        prefetcher.shutdownNow();
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SongCache[%d songs, %d/%d bytes, hits: %d, misses: %d, evictions: %d]",
+                entries.size(), sizeBytes, maxBytes, hits, misses, evictions);
+    }
+
+    private record Entry(Song song, long modified) {}
+
+    private static final int PREFETCH_THREADS = 2;
+}
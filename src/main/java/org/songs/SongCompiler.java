@@ -0,0 +1,168 @@
+package org.songs;
+
+import org.midireading.MidiFile;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+// Loads songs through an on-disk cache of compiled songs (see SongFile)
+// Cache entries are keyed by a hash of the MIDI file's contents, so edited files are recompiled
+// A stamp per MIDI file remembers its hash along with its size & mtime, so streaming a song that isn't compiled
+// can start without reading the whole file first
+public class SongCompiler {
+
+    private final Path cacheDir;        // null -> compiled songs are written next to their MIDI file
+
+    // Uses the directory from -Ddrumvis.cache, or ~/.drumvis/cache
+    public SongCompiler() {
+        this(Path.of(System.getProperty("drumvis.cache",
+                System.getProperty("user.home") + "/.drumvis/cache")));
+    }
+
+    public SongCompiler(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    public Song load(String pathname) throws IOException, InvalidMidiDataException {
+        return load(Path.of(pathname));
+    }
+
+    // Returns the compiled song for a MIDI file, compiling & caching it on a miss
+    public Song load(Path midiPath) throws IOException, InvalidMidiDataException {
+        Stamp stamp = Stamp.of(midiPath);
+        byte[] hash = hash(midiPath);
+        Path compiledPath = compiledPath(midiPath, hash);
+
+        Song song = SongFile.read(compiledPath, hash);
+        if (song == null) {
+            song = new Song(MidiFile.load(midiPath));
+            cache(song, hash, compiledPath);
+        }
+        writeStamp(midiPath, stamp, hash);
+        return song;
+    }
+
+    // Like load, but a song that isn't compiled yet is streamed (see SongStream) so it can start playing
+    // right away, and is cached once it's complete
+    // Only a song with a compiled candidate (its stamp still matches) is hashed before it starts,
+    // any other is hashed on the streaming thread once it's complete
+    public Song stream(Path midiPath) throws IOException, InvalidMidiDataException {
+        Stamp stamp = Stamp.of(midiPath);
+        byte[] known = readStamp(midiPath, stamp);
+        if (known != null) {
+            byte[] hash = hash(midiPath);
+            if (Arrays.equals(hash, known)) {
+                Song song = SongFile.read(compiledPath(midiPath, hash), hash);
+                if (song != null)
+                    return song;
+            }
+        }
+
+        Song song = SongStream.start(midiPath);
+        song.getCompletion().thenAccept(complete -> {
+            try {
+                // Edited while it was streaming, what was streamed doesn't match the file anymore
+                if (!stamp.equals(Stamp.of(midiPath))) return;
+                byte[] hash = hash(midiPath);
+                cache(complete, hash, compiledPath(midiPath, hash));
+                writeStamp(midiPath, stamp, hash);
+            } catch (IOException e) {
+                System.err.println("Could not cache compiled song: " + e.getMessage());
+            }
+        });
+        return song;
+    }
+
+    private void cache(Song song, byte[] hash, Path compiledPath) {
+        try {
+            Files.createDirectories(compiledPath.getParent());
+            SongFile.write(song, hash, compiledPath);
+        } catch (IOException e) {
+            // A read-only cache shouldn't stop the song from playing
+            System.err.println("Could not cache compiled song: " + e.getMessage());
+        }
+    }
+
+    // A MIDI file's size & mtime, which are taken to mean its contents haven't changed since its stamp was written
+    private record Stamp(long size, long modified) {
+        static Stamp of(Path midiPath) throws IOException {
+            return new Stamp(Files.size(midiPath), Files.getLastModifiedTime(midiPath).toMillis());
+        }
+    }
+
+    // Hash of a MIDI file's contents when it was last compiled, null if it's changed since (or never was)
+    private byte[] readStamp(Path midiPath, Stamp stamp) {
+        try {
+            Path path = stampPath(midiPath);
+            if (!Files.isRegularFile(path)) return null;
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (buf.remaining() != STAMP_BYTES || buf.getLong() != stamp.size() || buf.getLong() != stamp.modified())
+                return null;
+            byte[] hash = new byte[SongFile.HASH_LENGTH];
+            buf.get(hash);
+            return hash;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeStamp(Path midiPath, Stamp stamp, byte[] hash) {
+        try {
+            Path path = stampPath(midiPath);
+            Files.createDirectories(path.getParent());
+            Files.write(path, ByteBuffer.allocate(STAMP_BYTES).putLong(stamp.size()).putLong(stamp.modified())
+                    .put(hash, 0, SongFile.HASH_LENGTH).array());
+        } catch (IOException e) {
+            // Only means the next stream hashes the whole file again
+            System.err.println("Could not stamp compiled song: " + e.getMessage());
+        }
+    }
+
+    // Stamps are keyed by the MIDI file's path
+    private Path stampPath(Path midiPath) {
+        Path absolute = midiPath.toAbsolutePath().normalize();
+        if (cacheDir == null)
+            return absolute.resolveSibling(absolute.getFileName() + STAMP_SUFFIX);
+        try {
+            byte[] key = MessageDigest.getInstance("SHA-256").digest(absolute.toString().getBytes(StandardCharsets.UTF_8));
+            return cacheDir.resolve(HexFormat.of().formatHex(key) + STAMP_SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Where the compiled version of a MIDI file lives
+    public Path compiledPath(Path midiPath, byte[] hash) {
+        if (cacheDir == null)
+            return midiPath.resolveSibling(midiPath.getFileName() + SUFFIX);
+        return cacheDir.resolve(HexFormat.of().formatHex(hash) + SUFFIX);
+    }
+
+    // SHA-256 of a file's contents
+    public static byte[] hash(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(buffer);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JDK is required to ship SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final String SUFFIX = ".song";
+    private static final String STAMP_SUFFIX = ".stamp";
+    private static final int STAMP_BYTES = 16 + SongFile.HASH_LENGTH;
+}
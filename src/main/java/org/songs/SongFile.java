@@ -0,0 +1,159 @@
+package org.songs;
+
+import org.audio.PlaybackTimeline;
+import org.midireading.MeterMap;
+import org.midireading.TempoMap;
+import org.visuals.DrumChart;
+import org.visuals.DrumPart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Binary "compiled song" format, so a song can be loaded without touching the MIDI file
+//
+//  header:     magic "DSNG", version, SHA-256 of the source MIDI file (32 bytes)
+//  tempo map:  division type, resolution, segment count, ticks[], nanos[], tempos[]
+//  meter map:  segment count, ticks[], numerators[], denominators[]
+//  timeline:   event count, ticks[], nanos[], messages[]
+//  drum chart: hit count, nanos[], parts[], left count, leftHits[], right count, rightHits[],
+//              part count, partStarts[], partHits[]
+//  end nanos
+//
+// Everything is big-endian and read back with bulk gets from a mapped buffer
+public class SongFile {
+
+    private SongFile() {}
+
+    // Writes a song to a file, replacing it atomically
+    public static void write(Song song, byte[] sourceHash, Path path) throws IOException {
+        TempoMap tempoMap = song.getTempoMap();
+        MeterMap meterMap = song.getMeterMap();
+        int signatures = meterMap.getSegmentCount();
+        PlaybackTimeline timeline = song.getTimeline();
+        DrumChart chart = song.getDrumChart();
+        int segments = tempoMap.getSegmentCount();
+        int events = timeline.size();
+        int hits = chart.size();
+        int parts = DrumPart.values().length;
+
+        long size = 8 + HASH_LENGTH
+                + 12 + segments * 20L
+                + 4 + signatures * 16L
+                + 4 + events * 20L
+                + 4 + hits * 9L + 4 + chart.getLeftCount() * 4L + 4 + chart.getRightCount() * 4L
+                + 4 + (parts + 1) * 4L + hits * 4L
+                + 8;
+        ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(size));
+
+        buf.putInt(MAGIC).putInt(VERSION).put(sourceHash, 0, HASH_LENGTH);
+
+        buf.putFloat(tempoMap.getDivisionType()).putInt(tempoMap.getResolution()).putInt(segments);
+        for (int i = 0; i < segments; i++) buf.putLong(tempoMap.getSegmentTick(i));
+        for (int i = 0; i < segments; i++) buf.putLong(tempoMap.getSegmentNanos(i));
+        for (int i = 0; i < segments; i++) buf.putInt(tempoMap.getSegmentTempo(i));
+
+        buf.putInt(signatures);
+        for (int i = 0; i < signatures; i++) buf.putLong(meterMap.getSegmentTick(i));
+        for (int i = 0; i < signatures; i++) buf.putInt(meterMap.getSegmentNumerator(i));
+        for (int i = 0; i < signatures; i++) buf.putInt(meterMap.getSegmentDenominator(i));
+
+        buf.putInt(events);
+        for (int i = 0; i < events; i++) buf.putLong(timeline.getTick(i));
+        for (int i = 0; i < events; i++) buf.putLong(timeline.getNanos(i));
+        for (int i = 0; i < events; i++) buf.putInt(timeline.getMessage(i));
+
+        buf.putInt(hits);
+        for (int i = 0; i < hits; i++) buf.putLong(chart.getNanos(i));
+        for (int i = 0; i < hits; i++) buf.put((byte) chart.getPartOrdinal(i));
+        buf.putInt(chart.getLeftCount());
+        for (int i = 0; i < chart.getLeftCount(); i++) buf.putInt(chart.getLeftHit(i));
+        buf.putInt(chart.getRightCount());
+        for (int i = 0; i < chart.getRightCount(); i++) buf.putInt(chart.getRightHit(i));
+        buf.putInt(parts);
+        for (int p = 0; p <= parts; p++) buf.putInt(chart.getPartStart(p));
+        for (int i = 0; i < hits; i++) buf.putInt(chart.getPartHitAt(i));
+
+        buf.putLong(song.getEndNanos());
+
+        // Write to a temporary file first so a crash never leaves a half-written cache entry
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, buf.array());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Maps & reads a compiled song, returns null if it's missing, outdated, or made from a different file
+    public static Song read(Path path, byte[] sourceHash) throws IOException {
+        if (!Files.isRegularFile(path))
+            return null;
+
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                return null;
+            byte[] hash = new byte[HASH_LENGTH];
+            buf.get(hash);
+            if (sourceHash != null && !Arrays.equals(hash, sourceHash))
+                return null;
+
+            float divisionType = buf.getFloat();
+            int resolution = buf.getInt();
+            int segments = buf.getInt();
+            TempoMap tempoMap = new TempoMap(divisionType, resolution,
+                    getLongs(buf, segments), getLongs(buf, segments), getInts(buf, segments));
+            int signatures = buf.getInt();
+            MeterMap meterMap = new MeterMap(MeterMap.quarterTicks(tempoMap),
+                    getLongs(buf, signatures), getInts(buf, signatures), getInts(buf, signatures));
+
+            int events = buf.getInt();
+            PlaybackTimeline timeline = new PlaybackTimeline(
+                    getLongs(buf, events), getLongs(buf, events), getInts(buf, events));
+
+            int hits = buf.getInt();
+            long[] hitNanos = getLongs(buf, hits);
+            byte[] hitParts = new byte[hits];
+            buf.get(hitParts);
+            int[] leftHits = getInts(buf, buf.getInt());
+            int[] rightHits = getInts(buf, buf.getInt());
+            if (buf.getInt() != DrumPart.values().length)
+                return null;
+            int[] partStarts = getInts(buf, DrumPart.values().length + 1);
+            int[] partHits = getInts(buf, hits);
+            DrumChart chart = new DrumChart(hitNanos, hitParts, leftHits, rightHits, partStarts, partHits);
+
+            return new Song(tempoMap, meterMap, timeline, chart, buf.getLong());
+        } catch (RuntimeException e) {
+            // Truncated or corrupt file, just treat it as a cache miss
+            return null;
+        }
+    }
+
+    // Bulk-reads an array of longs & advances the buffer past them
+    static long[] getLongs(ByteBuffer buf, int count) {
+        long[] array = new long[count];
+        buf.asLongBuffer().get(array);
+        buf.position(buf.position() + count * 8);
+        return array;
+    }
+
+    static int[] getInts(ByteBuffer buf, int count) {
+        int[] array = new int[count];
+        buf.asIntBuffer().get(array);
+        buf.position(buf.position() + count * 4);
+        return array;
+    }
+
+    public static final int HASH_LENGTH = 32;
+
+    private static final int MAGIC = 0x44534E47;    // "DSNG"
+    private static final int VERSION = 3;
+}
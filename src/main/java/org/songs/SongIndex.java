@@ -0,0 +1,481 @@
+package org.songs;
+
+import org.midireading.CorpusAnalyzer;
+import org.midireading.MidiDump;
+import org.visuals.DrumPart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// Persistent, searchable index of a MIDI library: song info & drum density metrics stored as flat columns
+// A query is one linear scan over primitive arrays, so even libraries of thousands of songs answer in
+// well under a millisecond:
+//   SongIndex [folder] [-sig 4/4] [-bpm 90-110] [-heavy ride] [-hps min-max] [-max-hps 6] [-threads n]
+//
+// The index lives in the library folder as .songindex. Updating it only re-analyzes files that are new,
+// or whose modification time / size changed AND whose content hash no longer matches
+// Files that fail to analyze keep a row too (flagged failed, never matched), so they aren't retried until they change
+//
+//  header:  magic "DIDX", version, song count, drum part count
+//  columns: modified[], sizes[], hashes[], minBpm[], maxBpm[], timeSigNum[], timeSigType[], keyNote[],
+//           majorKey[], failed[], seconds[], hitsPerSecond[], peakHitsPerSecond[], partShares[count * parts]
+//  strings: starts[2 * count + 1], UTF-8 bytes (path, then track name, of every song)
+public class SongIndex {
+
+    private final int count;
+    private final long[] modified;
+    private final long[] sizes;
+    private final byte[] hashes;            // SongFile.HASH_LENGTH bytes per song
+    private final int[] minBpm;
+    private final int[] maxBpm;
+    private final byte[] timeSigNum;        // First time signature of the song
+    private final byte[] timeSigType;
+    private final byte[] keyNote;           // NO_KEY if the song has no key signature
+    private final boolean[] majorKey;
+    private final boolean[] failed;         // Couldn't be analyzed, only the file info is real
+    private final float[] seconds;
+    private final float[] hitsPerSecond;
+    private final int[] peakHitsPerSecond;
+    private final float[] partShares;       // Fraction of a song's hits on each drum part, row-major
+
+    // Strings stay in the mapped file & are only decoded for the songs a caller asks about
+    private final int[] stringStarts;
+    private final ByteBuffer strings;
+
+    public static void main(String[] args) throws Exception {
+        Path root = Path.of("src/main/resources");
+        int threads = Runtime.getRuntime().availableProcessors();
+        Query query = new Query();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-sig" -> {
+                    String[] sig = args[++i].split("/");
+                    query.timeSignature(Integer.parseInt(sig[0]), Integer.parseInt(sig[1]));
+                }
+                case "-bpm" -> {
+                    int[] range = parseRange(args[++i]);
+                    query.bpm(range[0], range[1]);
+                }
+                case "-hps" -> {
+                    String[] range = args[++i].split("-", 2);
+                    query.hitsPerSecond(Float.parseFloat(range[0]), Float.parseFloat(range[range.length - 1]));
+                }
+                case "-max-hps" -> query.hitsPerSecond(0, Float.parseFloat(args[++i]));
+                case "-heavy" -> query.heavy(DrumPart.valueOf(args[++i].toUpperCase()));
+                case "-threads" -> threads = Integer.parseInt(args[++i]);
+                default -> root = Path.of(args[i]);
+            }
+        }
+
+        long start = System.nanoTime();
+        SongIndex index = update(root, root.resolve(FILE_NAME), threads);
+        System.err.printf("Indexed %d songs in %.3fs%n", index.size(), (System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        int[] matches = index.find(query);
+        long queryNanos = System.nanoTime() - start;
+
+        for (int i : matches)
+            System.out.printf("%-40s %3d-%3d bpm  %d/%d  %5.2f hits/s  %s%n", index.getName(i),
+                    index.getMinBpm(i), index.getMaxBpm(i), index.getTimeSigNum(i), index.getTimeSigType(i),
+                    index.getHitsPerSecond(i), index.getPath(i));
+        System.err.printf("%d of %d songs matched in %.1f us%n", matches.length, index.size(), queryNanos / 1e3);
+    }
+
+    // "90-110" or just "100"
+    private static int[] parseRange(String arg) {
+        int dash = arg.indexOf('-');
+        if (dash < 0) {
+            int value = Integer.parseInt(arg);
+            return new int[] {value, value};
+        }
+        return new int[] {Integer.parseInt(arg.substring(0, dash)), Integer.parseInt(arg.substring(dash + 1))};
+    }
+
+    /*=============== Building ===============*/
+
+    // Brings the index of a library folder up to date & returns it
+    public static SongIndex update(Path root, Path indexPath, int threads) throws IOException, InterruptedException {
+        SongIndex old = load(indexPath);
+        Map<String, Integer> oldRows = new HashMap<>();
+        if (old != null)
+            for (int i = 0; i < old.count; i++)
+                oldRows.put(old.getPath(i), i);
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(MidiDump::isMidiFile).sorted().toList();
+        }
+
+        Row[] rows = new Row[files.size()];
+        List<Path> changed = new ArrayList<>();
+        List<Integer> changedRows = new ArrayList<>();
+        List<byte[]> changedHashes = new ArrayList<>();
+        boolean touched = false;        // Some rows have new mtimes to save, even if nothing needs analyzing
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i).toAbsolutePath().normalize();
+            String path = file.toString();
+            long fileModified = Files.getLastModifiedTime(file).toMillis();
+            long fileSize = Files.size(file);
+
+            Integer r = oldRows.get(path);
+            if (r != null && old.modified[r] == fileModified && old.sizes[r] == fileSize) {
+                rows[i] = old.row(r);
+                continue;
+            }
+            // Touched but not actually changed (copied, checked out again...), keep the old metrics
+            byte[] hash = SongCompiler.hash(file);
+            if (r != null && Arrays.equals(old.getHash(r), hash)) {
+                rows[i] = old.row(r).withFile(fileModified, fileSize);
+                touched = true;
+                continue;
+            }
+            changed.add(file);
+            changedRows.add(i);
+            changedHashes.add(hash);
+        }
+
+        if (!changed.isEmpty()) {
+            List<CorpusAnalyzer.SongStats> results = new CorpusAnalyzer(threads).analyze(changed);
+            for (int i = 0; i < results.size(); i++) {
+                CorpusAnalyzer.SongStats stats = results.get(i);
+                Path file = changed.get(i);
+                long fileModified = Files.getLastModifiedTime(file).toMillis();
+                long fileSize = Files.size(file);
+                if (stats.error != null) {
+                    System.err.println("Not indexing " + file + ": " + stats.error);
+                    rows[changedRows.get(i)] = Row.failed(file, fileModified, fileSize, changedHashes.get(i));
+                    continue;
+                }
+                rows[changedRows.get(i)] = Row.of(stats, fileModified, fileSize, changedHashes.get(i));
+            }
+        }
+
+        // Nothing changed or touched, nothing was removed: the file on disk is already current
+        if (old != null && changed.isEmpty() && !touched && old.count == files.size())
+            return old;
+
+        write(Arrays.stream(rows).filter(row -> row != null).toList(), indexPath);
+        return load(indexPath);
+    }
+
+    // One song's entry while the index is being rebuilt
+    private record Row(String path, String name, long modified, long size, byte[] hash, boolean failed,
+                       int minBpm, int maxBpm, int timeSigNum, int timeSigType, int keyNote, boolean majorKey,
+                       float seconds, float hitsPerSecond, int peakHitsPerSecond, float[] partShares) {
+
+        static Row of(CorpusAnalyzer.SongStats stats, long modified, long size, byte[] hash) {
+            float[] shares = new float[PARTS];
+            for (int p = 0; p < PARTS; p++)
+                shares[p] = stats.hits > 0 ? stats.partHits[p] / (float) stats.hits : 0;
+            return new Row(stats.path.toAbsolutePath().normalize().toString(), stats.name == null ? "" : stats.name,
+                    modified, size, hash, false,
+                    stats.minBpm, stats.maxBpm, stats.timeSigNum, stats.timeSigType,
+                    stats.hasKey ? stats.keyNote : NO_KEY, stats.majorKey,
+                    (float) stats.seconds, (float) stats.getHitsPerSecond(), stats.peakHitsPerSecond, shares);
+        }
+
+        // A file that couldn't be analyzed, kept so it's only retried once it changes
+        static Row failed(Path file, long modified, long size, byte[] hash) {
+            return new Row(file.toString(), "", modified, size, hash, true,
+                    0, 0, 0, 0, NO_KEY, false, 0, 0, 0, new float[PARTS]);
+        }
+
+        Row withFile(long modified, long size) {
+            return new Row(path, name, modified, size, hash, failed, minBpm, maxBpm, timeSigNum, timeSigType, keyNote,
+                    majorKey, seconds, hitsPerSecond, peakHitsPerSecond, partShares);
+        }
+    }
+
+    private Row row(int i) {
+        return new Row(getPath(i), getName(i), modified[i], sizes[i], getHash(i), failed[i], minBpm[i], maxBpm[i],
+                timeSigNum[i], timeSigType[i], keyNote[i], majorKey[i], seconds[i], hitsPerSecond[i],
+                peakHitsPerSecond[i], Arrays.copyOfRange(partShares, i * PARTS, (i + 1) * PARTS));
+    }
+
+    // Writes an index file, replacing it atomically
+    private static void write(List<Row> rows, Path path) throws IOException {
+        int count = rows.size();
+        byte[][] encoded = new byte[count * 2][];
+        int stringBytes = 0;
+        for (int i = 0; i < count; i++) {
+            encoded[2 * i] = rows.get(i).path.getBytes(StandardCharsets.UTF_8);
+            encoded[2 * i + 1] = rows.get(i).name.getBytes(StandardCharsets.UTF_8);
+            stringBytes += encoded[2 * i].length + encoded[2 * i + 1].length;
+        }
+
+        long size = 16 + count * (8L + 8 + SongFile.HASH_LENGTH + 4 + 4 + 1 + 1 + 1 + 1 + 1 + 4 + 4 + 4 + PARTS * 4L)
+                + (count * 2L + 1) * 4 + stringBytes;
+        ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(size));
+
+        buf.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(PARTS);
+        for (Row row : rows) buf.putLong(row.modified);
+        for (Row row : rows) buf.putLong(row.size);
+        for (Row row : rows) buf.put(row.hash, 0, SongFile.HASH_LENGTH);
+        for (Row row : rows) buf.putInt(row.minBpm);
+        for (Row row : rows) buf.putInt(row.maxBpm);
+        for (Row row : rows) buf.put((byte) row.timeSigNum);
+        for (Row row : rows) buf.put((byte) row.timeSigType);
+        for (Row row : rows) buf.put((byte) row.keyNote);
+        for (Row row : rows) buf.put((byte) (row.majorKey ? 1 : 0));
+        for (Row row : rows) buf.put((byte) (row.failed ? 1 : 0));
+        for (Row row : rows) buf.putFloat(row.seconds);
+        for (Row row : rows) buf.putFloat(row.hitsPerSecond);
+        for (Row row : rows) buf.putInt(row.peakHitsPerSecond);
+        for (Row row : rows)
+            for (float share : row.partShares) buf.putFloat(share);
+
+        int start = 0;
+        for (byte[] str : encoded) {
+            buf.putInt(start);
+            start += str.length;
+        }
+        buf.putInt(start);
+        for (byte[] str : encoded) buf.put(str);
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, buf.array());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*=============== Loading ===============*/
+
+    // Maps an index file, returns null if it's missing, outdated or corrupt
+    public static SongIndex load(Path path) throws IOException {
+        if (!Files.isRegularFile(path))
+            return null;
+
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                return null;
+            int count = buf.getInt();
+            if (buf.getInt() != PARTS)
+                return null;
+            return new SongIndex(buf, count);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private SongIndex(ByteBuffer buf, int count) {
+        this.count = count;
+        modified = SongFile.getLongs(buf, count);
+        sizes = SongFile.getLongs(buf, count);
+        hashes = getBytes(buf, count * SongFile.HASH_LENGTH);
+        minBpm = SongFile.getInts(buf, count);
+        maxBpm = SongFile.getInts(buf, count);
+        timeSigNum = getBytes(buf, count);
+        timeSigType = getBytes(buf, count);
+        keyNote = getBytes(buf, count);
+        majorKey = new boolean[count];
+        for (int i = 0; i < count; i++)
+            majorKey[i] = buf.get() != 0;
+        failed = new boolean[count];
+        for (int i = 0; i < count; i++)
+            failed[i] = buf.get() != 0;
+        seconds = getFloats(buf, count);
+        hitsPerSecond = getFloats(buf, count);
+        peakHitsPerSecond = SongFile.getInts(buf, count);
+        partShares = getFloats(buf, count * PARTS);
+        stringStarts = SongFile.getInts(buf, count * 2 + 1);
+        strings = buf.slice(buf.position(), stringStarts[count * 2]);
+    }
+
+    private static byte[] getBytes(ByteBuffer buf, int count) {
+        byte[] array = new byte[count];
+        buf.get(array);
+        return array;
+    }
+
+    private static float[] getFloats(ByteBuffer buf, int count) {
+        float[] array = new float[count];
+        buf.asFloatBuffer().get(array);
+        buf.position(buf.position() + count * 4);
+        return array;
+    }
+
+    private String getString(int n) {
+        int start = stringStarts[n];
+        byte[] bytes = new byte[stringStarts[n + 1] - start];
+        strings.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*=============== Searching ===============*/
+
+    // Indices of every song matching a query, in path order
+    public int[] find(Query query) {
+        int[] matches = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; i++)
+            if (query.matches(this, i))
+                matches[found++] = i;
+        return Arrays.copyOf(matches, found);
+    }
+
+    // Conditions a song must meet, unset conditions match everything:
+    //   new Query().timeSignature(4, 4).bpm(90, 110).heavy(DrumPart.RIDE).hitsPerSecond(0, 6)
+    public static class Query {
+        private int timeSigNum;
+        private int timeSigType;
+        private int minBpm = 0;
+        private int maxBpm = Integer.MAX_VALUE;
+        private float minHitsPerSecond = 0;
+        private float maxHitsPerSecond = Float.MAX_VALUE;
+        private int keyNote = NO_KEY;
+        private boolean majorKey;
+        private final float[] minShares = new float[PARTS];
+
+        public Query timeSignature(int num, int type) {
+            timeSigNum = num;
+            timeSigType = type;
+            return this;
+        }
+
+        // Every tempo of the song is within the range
+        public Query bpm(int min, int max) {
+            minBpm = min;
+            maxBpm = max;
+            return this;
+        }
+
+        public Query hitsPerSecond(float min, float max) {
+            minHitsPerSecond = min;
+            maxHitsPerSecond = max;
+            return this;
+        }
+
+        public Query key(int keyNote, boolean majorKey) {
+            this.keyNote = keyNote;
+            this.majorKey = majorKey;
+            return this;
+        }
+
+        // At least this fraction of the song's hits are on a part
+        public Query share(DrumPart part, float minShare) {
+            minShares[part.ordinal()] = minShare;
+            return this;
+        }
+
+        // "Ride-heavy", "crash-heavy"...
+        public Query heavy(DrumPart part) {
+            return share(part, HEAVY_SHARE);
+        }
+
+        boolean matches(SongIndex index, int i) {
+            if (index.failed[i])
+                return false;
+            if (timeSigNum != 0 && (index.timeSigNum[i] != timeSigNum || index.timeSigType[i] != timeSigType))
+                return false;
+            if (index.minBpm[i] < minBpm || index.maxBpm[i] > maxBpm)
+                return false;
+            if (index.hitsPerSecond[i] < minHitsPerSecond || index.hitsPerSecond[i] > maxHitsPerSecond)
+                return false;
+            if (keyNote != NO_KEY && (index.keyNote[i] != keyNote || index.majorKey[i] != majorKey))
+                return false;
+            int row = i * PARTS;
+            for (int p = 0; p < PARTS; p++)
+                if (index.partShares[row + p] < minShares[p])
+                    return false;
+            return true;
+        }
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    // Songs indexed, including any that failed to analyze
+    public int size() {
+        return count;
+    }
+
+    public String getPath(int i) {
+        return getString(2 * i);
+    }
+
+    // First track name of the song ("" if it has none)
+    public String getName(int i) {
+        return getString(2 * i + 1);
+    }
+
+    // Whether a song couldn't be analyzed (then only its path, file info & hash are set)
+    public boolean isFailed(int i) {
+        return failed[i];
+    }
+
+    public long getModified(int i) {
+        return modified[i];
+    }
+
+    public byte[] getHash(int i) {
+        return Arrays.copyOfRange(hashes, i * SongFile.HASH_LENGTH, (i + 1) * SongFile.HASH_LENGTH);
+    }
+
+    public int getMinBpm(int i) {
+        return minBpm[i];
+    }
+
+    public int getMaxBpm(int i) {
+        return maxBpm[i];
+    }
+
+    public int getTimeSigNum(int i) {
+        return timeSigNum[i];
+    }
+
+    public int getTimeSigType(int i) {
+        return timeSigType[i];
+    }
+
+    public boolean hasKey(int i) {
+        return keyNote[i] != NO_KEY;
+    }
+
+    public int getKeyNote(int i) {
+        return keyNote[i];
+    }
+
+    public boolean isMajorKey(int i) {
+        return majorKey[i];
+    }
+
+    public float getSeconds(int i) {
+        return seconds[i];
+    }
+
+    public float getHitsPerSecond(int i) {
+        return hitsPerSecond[i];
+    }
+
+    public int getPeakHitsPerSecond(int i) {
+        return peakHitsPerSecond[i];
+    }
+
+    public float getPartShare(int i, DrumPart part) {
+        return partShares[i * PARTS + part.ordinal()];
+    }
+
+    public static final String FILE_NAME = ".songindex";
+    // A part is "heavy" in a song when at least this fraction of its hits are on it
+    public static final float HEAVY_SHARE = 0.25f;
+
+    private static final int PARTS = DrumPart.values().length;
+    private static final int NO_KEY = Byte.MIN_VALUE;
+    private static final int MAGIC = 0x44494458;    // "DIDX"
+    private static final int VERSION = 2;
+}
@@ -0,0 +1,214 @@
+package org.songs;
+
+import org.audio.PlaybackTimeline;
+import org.midireading.MIDIFormatter;
+import org.midireading.MeterMap;
+import org.midireading.MidiContext;
+import org.midireading.MidiFile;
+import org.midireading.PackedMessage;
+import org.midireading.TempoMap;
+import org.visuals.DrumChart;
+
+import javax.sound.midi.InvalidMidiDataException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.midireading.TrackSettings.metaTypes.SET_TEMPO;
+import static org.midireading.TrackSettings.metaTypes.TIME_SIGNATURE;
+
+// Decodes a MIDI file into a Song while the song is already playing
+// A producer thread reads every track a little at a time, merging them in time order (like PlaybackTimeline)
+// and working out song time as tempo events come up. Each CHUNK_NANOS of song time is published to the
+// song's timeline, so the first notes can play after one chunk no matter how long the file is
+public class SongStream implements Runnable {
+
+    private final MidiFile midiFile;    // Only scanned, tracks are read through TrackReaders
+    private final MidiContext context;
+    private final PlaybackTimeline timeline;
+    private final Song song;
+
+    // Tempo segments found so far (see TempoMap)
+    private long[] segmentTicks = {0};
+    private long[] segmentNanos = {0};
+    private int[] segmentTempos = {TempoMap.DEFAULT_TEMPO};
+    private int segments = 1;
+    private boolean tempoChanged;
+
+    // Time signature changes found so far (see MeterMap)
+    private long[] signatureTicks = new long[4];
+    private int[] signatureNumerators = new int[4];
+    private int[] signatureDenominators = new int[4];
+    private int signatures;
+    private boolean meterChanged;
+
+    // Maps a file & starts decoding it in the background, returns the song as it's being filled in
+    public static Song start(Path midiPath) throws IOException, InvalidMidiDataException {
+        try (FileChannel channel = FileChannel.open(midiPath, StandardOpenOption.READ)) {
+            return start(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static Song start(ByteBuffer buffer) throws InvalidMidiDataException {
+        SongStream stream = new SongStream(buffer);
+        Thread.ofPlatform().daemon().name("song-stream").start(stream);
+        return stream.song;
+    }
+
+    private SongStream(ByteBuffer buffer) throws InvalidMidiDataException {
+        midiFile = MidiFile.scan(buffer);
+        context = new MidiContext(midiFile);
+        // Grows as it's filled, so starting doesn't cost more for bigger files
+        timeline = new PlaybackTimeline(INITIAL_CAPACITY);
+        TempoMap tempoMap = tempoSnapshot();
+        song = new Song(tempoMap, meterSnapshot(tempoMap), timeline);
+    }
+
+    @Override
+    public void run() {
+        try {
+            produce();
+        } catch (InvalidMidiDataException | RuntimeException e) {
+            song.fail(e);
+        }
+    }
+
+    private void produce() throws InvalidMidiDataException {
+        int trackCount = midiFile.getTrackCount();
+        MidiFile.TrackReader[] readers = new MidiFile.TrackReader[trackCount];
+        int[] heap = new int[trackCount];
+        int heapSize = 0;
+        for (int t = 0; t < trackCount; t++) {
+            readers[t] = midiFile.getTrackReader(t);
+            if (readers[t].next())
+                heap[heapSize++] = t;
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(heap, heapSize, i, readers);
+
+        long chunkEndNanos = CHUNK_NANOS;
+        long endTick = 0;
+        while (heapSize > 0) {
+            MidiFile.TrackReader reader = readers[heap[0]];
+            long tick = reader.getTick();
+            int message = reader.getMessage();
+            int last = segments - 1;
+            long songNanos = segmentNanos[last] + context.ticksToNanos(tick - segmentTicks[last], segmentTempos[last]);
+            endTick = Math.max(endTick, tick);
+
+            if (PackedMessage.isChannelMessage(message)) {
+                // Everything before this event is final, hand it over
+                if (songNanos >= chunkEndNanos) {
+                    publish(songNanos - 1);
+                    chunkEndNanos = songNanos + CHUNK_NANOS;
+                }
+                timeline.append(tick, songNanos, message);
+            } else if (PackedMessage.isMeta(message) && reader.getPayloadType() == SET_TEMPO
+                    && reader.getPayloadLength() >= 3) {
+                addTempo(tick, songNanos, MIDIFormatter.bytesToNum(midiFile.getBuffer(), reader.getPayloadOffset(), 3));
+            } else if (PackedMessage.isMeta(message) && reader.getPayloadType() == TIME_SIGNATURE
+                    && reader.getPayloadLength() >= 2) {
+                ByteBuffer buffer = midiFile.getBuffer();
+                addTimeSignature(tick, buffer.get(reader.getPayloadOffset()) & 0xFF,
+                        1 << (buffer.get(reader.getPayloadOffset() + 1) & 0x1F));
+            }
+
+            // Advance this track, dropping it from the heap once it's exhausted
+            if (!reader.next())
+                heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize, 0, readers);
+        }
+
+        TempoMap tempoMap = tempoSnapshot();
+        MeterMap meterMap = meterSnapshot(tempoMap);
+        song.setTempoMap(tempoMap);
+        song.setMeterMap(meterMap);
+        timeline.finish();
+        song.complete(tempoMap, meterMap, new DrumChart(timeline), tempoMap.tickToNanos(endTick));
+    }
+
+    // Later tempo events on the same tick replace earlier ones, like TempoMap
+    // Like TempoMap, ignores a tempo of 0
+    private void addTempo(long tick, long songNanos, int tempo) {
+        if (tempo <= 0) return;
+        if (tick == segmentTicks[segments - 1]) {
+            segmentTempos[segments - 1] = tempo;
+        } else {
+            if (segments == segmentTicks.length) {
+                segmentTicks = Arrays.copyOf(segmentTicks, segments * 2);
+                segmentNanos = Arrays.copyOf(segmentNanos, segments * 2);
+                segmentTempos = Arrays.copyOf(segmentTempos, segments * 2);
+            }
+            segmentTicks[segments] = tick;
+            segmentNanos[segments] = songNanos;
+            segmentTempos[segments++] = tempo;
+        }
+        tempoChanged = true;
+    }
+
+    private void addTimeSignature(long tick, int numerator, int denominator) {
+        if (signatures == signatureTicks.length) {
+            signatureTicks = Arrays.copyOf(signatureTicks, signatures * 2);
+            signatureNumerators = Arrays.copyOf(signatureNumerators, signatures * 2);
+            signatureDenominators = Arrays.copyOf(signatureDenominators, signatures * 2);
+        }
+        signatureTicks[signatures] = tick;
+        signatureNumerators[signatures] = numerator;
+        signatureDenominators[signatures++] = denominator;
+        meterChanged = true;
+    }
+
+    private MeterMap meterSnapshot(TempoMap tempoMap) {
+        return new MeterMap(MeterMap.quarterTicks(tempoMap), Arrays.copyOf(signatureTicks, signatures),
+                Arrays.copyOf(signatureNumerators, signatures), Arrays.copyOf(signatureDenominators, signatures));
+    }
+
+    private TempoMap tempoSnapshot() {
+        return new TempoMap(midiFile.getDivisionType(), midiFile.getResolution(),
+                Arrays.copyOf(segmentTicks, segments), Arrays.copyOf(segmentNanos, segments),
+                Arrays.copyOf(segmentTempos, segments));
+    }
+
+    // Hands every decoded event over to the players, along with the tempo map covering them
+    private void publish(long readyNanos) {
+        if (tempoChanged) {
+            song.setTempoMap(tempoSnapshot());
+            tempoChanged = false;
+        }
+        if (meterChanged) {
+            song.setMeterMap(meterSnapshot(song.getTempoMap()));
+            meterChanged = false;
+        }
+        timeline.publish(readyNanos);
+        song.published();
+    }
+
+    private static void siftDown(int[] heap, int heapSize, int i, MidiFile.TrackReader[] readers) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && before(heap[left], heap[smallest], readers)) smallest = left;
+            if (right < heapSize && before(heap[right], heap[smallest], readers)) smallest = right;
+            if (smallest == i) return;
+            int swap = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = swap;
+            i = smallest;
+        }
+    }
+
+    // Whether track a's current event comes before track b's, ties keep file order
+    private static boolean before(int a, int b, MidiFile.TrackReader[] readers) {
+        long tickA = readers[a].getTick();
+        long tickB = readers[b].getTick();
+        return tickA < tickB || (tickA == tickB && a < b);
+    }
+
+    // Song time covered by each published chunk
+    public static final long CHUNK_NANOS = 2_000_000_000L;
+    private static final int INITIAL_CAPACITY = 4096;
+}
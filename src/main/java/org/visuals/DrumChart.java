@@ -0,0 +1,227 @@
+package org.visuals;
+
+import org.audio.PlaybackTimeline;
+import org.midireading.PackedMessage;
+
+import java.util.Arrays;
+
+// Every drum hit of a song (channel 10 NOTE_ONs) in time order, stored as flat arrays
+// along with which stick plays each hit and the hits of each DrumPart
+//
+// A chart can also follow a streamed timeline: update() converts whatever the timeline has published
+// since the last call, and the per-part index is built once the timeline is complete
+public final class DrumChart {
+
+    private long[] nanos;               // Song time of each hit
+    private byte[] parts;               // DrumPart ordinal of each hit
+    private int[] leftHits;             // Indices of hits played by the left stick
+    private int[] rightHits;            // Indices of hits played by the right stick
+    private int[] partStarts;           // Hits of part p are partHits[partStarts[p] .. partStarts[p + 1])
+    private int[] partHits;             // (both null until the chart is complete)
+    private int size;
+    private int leftCount;
+    private int rightCount;
+
+    private int consumed;               // Timeline events already converted
+
+    // Converts channel 10 (9 in 0-indexed) of a merged timeline into drum hits
+    public DrumChart(PlaybackTimeline timeline) {
+        this();
+        update(timeline);
+    }
+
+    // Empty chart, filled by update()
+    public DrumChart() {
+        nanos = new long[INITIAL_CAPACITY];
+        parts = new byte[INITIAL_CAPACITY];
+        leftHits = new int[INITIAL_CAPACITY];
+        rightHits = new int[INITIAL_CAPACITY];
+    }
+
+    // Rebuilds a chart from its arrays (see SongFile)
+    public DrumChart(long[] nanos, byte[] parts, int[] leftHits, int[] rightHits, int[] partStarts, int[] partHits) {
+        this.nanos = nanos;
+        this.parts = parts;
+        this.leftHits = leftHits;
+        this.rightHits = rightHits;
+        this.partStarts = partStarts;
+        this.partHits = partHits;
+        size = nanos.length;
+        leftCount = leftHits.length;
+        rightCount = rightHits.length;
+    }
+
+    // Converts the timeline's newly published events, returns whether the chart is complete
+    public boolean update(PlaybackTimeline timeline) {
+        if (partStarts != null)
+            return true;
+
+        int available = timeline.size();
+        for (; consumed < available; consumed++) {
+            DrumPart part = toDrumPart(timeline.getMessage(consumed));
+            if (part == null) continue;
+
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+                parts = Arrays.copyOf(parts, size * 2);
+            }
+            nanos[size] = timeline.getNanos(consumed);
+            parts[size] = (byte) part.ordinal();
+            switch (evalDrumHit(part)) {
+                case 1:
+                    if (leftCount == leftHits.length) leftHits = Arrays.copyOf(leftHits, leftCount * 2);
+                    leftHits[leftCount++] = size;
+                    break;
+
+                case 2:
+                    if (rightCount == rightHits.length) rightHits = Arrays.copyOf(rightHits, rightCount * 2);
+                    rightHits[rightCount++] = size;
+                    break;
+            }
+            size++;
+        }
+
+        // Size is read again after isComplete, in case the last events were published in between
+        if (timeline.isComplete() && consumed == timeline.size()) {
+            buildPartIndex();
+            return true;
+        }
+        return false;
+    }
+
+    // Bucket hit indices by part (counting sort keeps each part's hits in time order)
+    private void buildPartIndex() {
+        nanos = Arrays.copyOf(nanos, size);
+        parts = Arrays.copyOf(parts, size);
+        leftHits = Arrays.copyOf(leftHits, leftCount);
+        rightHits = Arrays.copyOf(rightHits, rightCount);
+
+        int[] starts = new int[DrumPart.values().length + 1];
+        for (byte part : parts)
+            starts[part + 1]++;
+        for (int p = 0; p < DrumPart.values().length; p++)
+            starts[p + 1] += starts[p];
+        partHits = new int[size];
+        int[] fill = Arrays.copyOf(starts, DrumPart.values().length);
+        for (int i = 0; i < size; i++)
+            partHits[fill[parts[i]]++] = i;
+        partStarts = starts;
+    }
+
+    // Returns the DrumPart hit by a packed message, or null if it isn't a drum hit
+    public static DrumPart toDrumPart(int message) {
+        if (PackedMessage.getChannel(message) != 9 || !PackedMessage.isNoteOn(message))
+            return null;
+        return DrumPart.fromKey(PackedMessage.getData1(message));
+    }
+
+    public final static DrumPart[] leftParts = new DrumPart[]{
+            DrumPart.SNARE, DrumPart.HI_TOM, DrumPart.MID_TOM, DrumPart.MISC
+    };
+    public final static DrumPart[] rightParts = new DrumPart[]{
+            DrumPart.FLOOR_TOM, DrumPart.HI_HAT, DrumPart.CRASH, DrumPart.CRASH_2, DrumPart.RIDE
+    };
+
+    // Returns a number 0 - 2 inclusive whether a DrumPart should be hit by left (1), right (2), or neither (0)
+    public static int evalDrumHit(DrumPart hit) {
+        for (DrumPart part: leftParts) {
+            if (hit == part)
+                return 1;
+        }
+        for (DrumPart part: rightParts) {
+            if (hit == part)
+                return 2;
+        }
+        return 0;
+    }
+
+    /*=============== Seeking ===============*/
+
+    // Index of the first hit at or after a song time (size() if there's none)
+    public int hitAt(long songNanos) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (nanos[mid] < songNanos) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // Number of left / right stick hits before a song time
+    public int leftCountBefore(long songNanos) {
+        return countBefore(leftHits, leftCount, songNanos);
+    }
+
+    public int rightCountBefore(long songNanos) {
+        return countBefore(rightHits, rightCount, songNanos);
+    }
+
+    private int countBefore(int[] hits, int count, long songNanos) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (nanos[hits[mid]] < songNanos) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isComplete() {
+        return partStarts != null;
+    }
+
+    public long getNanos(int hit) {
+        return nanos[hit];
+    }
+
+    public DrumPart getPart(int hit) {
+        return DrumPart.of(parts[hit]);
+    }
+
+    public int getPartOrdinal(int hit) {
+        return parts[hit];
+    }
+
+    public int getLeftCount() {
+        return leftCount;
+    }
+
+    public int getLeftHit(int index) {
+        return leftHits[index];
+    }
+
+    public int getRightCount() {
+        return rightCount;
+    }
+
+    public int getRightHit(int index) {
+        return rightHits[index];
+    }
+
+    // Number of hits on a part (only once the chart is complete)
+    public int getPartCount(DrumPart part) {
+        return partStarts[part.ordinal() + 1] - partStarts[part.ordinal()];
+    }
+
+    // Index (into the whole chart) of the n-th hit on a part
+    public int getPartHit(DrumPart part, int n) {
+        return partHits[partStarts[part.ordinal()] + n];
+    }
+
+    public int getPartStart(int ordinal) {
+        return partStarts[ordinal];
+    }
+
+    public int getPartHitAt(int index) {
+        return partHits[index];
+    }
+
+    private static final int INITIAL_CAPACITY = 256;
+}
@@ -0,0 +1,75 @@
+package org.visuals;
+
+// Parts of the drum kit that hits are drawn on (each has a point in Visualizer.drumPoints)
+public enum DrumPart {
+    SNARE, HI_TOM, MID_TOM, FLOOR_TOM,
+    HI_HAT, CRASH, RIDE, CRASH_2,
+    KICK, HI_HAT_PEDAL,
+    MISC;
+
+    // Returns the DrumPart of a General MIDI percussion key, or null if it's outside the map
+    public static DrumPart fromKey(int key) {
+        int index = key - FIRST_KEY;
+        return index >= 0 && index < KEY_MAP.length ? KEY_MAP[index] : null;
+    }
+
+    private static final DrumPart[] VALUES = values();
+
+    // Returns the DrumPart with a given ordinal
+    public static DrumPart of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    private static final int FIRST_KEY = 35;
+
+    // Maps the general MIDI Percussion Map to drumPoint indices (offset by 35)
+    private static final DrumPart[] KEY_MAP = new DrumPart[] {
+            KICK,			// Acoustic Bass Drum
+            KICK,			// Bass Drum 1
+            MISC,			// Side Stick
+            SNARE,			// Acoustic Snare
+            SNARE,			// Hand Clap
+            SNARE,			// Electric Snare
+            FLOOR_TOM,		// Low Floor Tom
+            HI_HAT,		// Closed Hi Hat
+            FLOOR_TOM,		// High Floor Tom
+            HI_HAT_PEDAL,	// Pedal Hi-Hat
+            FLOOR_TOM,		// Low Tom
+            HI_HAT,		// Open Hi-Hat
+            MID_TOM,		// Low-Mid Tom
+            MID_TOM,		// Hi Mid Tom
+            CRASH,			// Crash Cymbal 1
+            HI_TOM,		// High Tom
+            RIDE,			// Ride Cymbal 1
+            CRASH,			// Chinese Cymbal
+            RIDE,			// Ride Bell
+            HI_HAT,		// Tambourine
+            CRASH_2,		// Splash Cymbal
+            MISC,			// Cowbell
+            CRASH_2,		// Crash Cymbal 2
+            MISC,			// Vibraslap
+            RIDE,			// Ride Cymbal 2
+            HI_TOM,		// Hi Bongo
+            MID_TOM,		// Low Bongo
+            HI_TOM,		// Mute Hi Conga
+            HI_TOM,		// Open Hi Conga
+            MID_TOM,		// Low Conga
+            HI_TOM,		// High Timbale
+            MID_TOM,		// Low Timbale
+            MISC,			// High Agogo
+            MISC,			// Low Agogo
+            HI_HAT,		// Cabasa
+            HI_HAT,		// Maracas
+            MISC,			// Short Whistle
+            MISC,			// Long Whistle
+            MISC,			// Short Guiro
+            MISC,			// Long Guiro
+            MISC,			// Claves
+            MISC,			// Hi Wood Block
+            MISC,			// Low Wood Block
+            HI_TOM,		// Mute Cuica
+            HI_TOM,		// Open Cuica
+            MISC,			// Mute Triangle
+            MISC			// Open Triangle
+    };
+}
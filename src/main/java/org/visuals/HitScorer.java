@@ -0,0 +1,289 @@
+package org.visuals;
+
+import org.audio.LoopbackTransmitter;
+import org.midireading.MidiFile;
+import org.songs.Song;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Transmitter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+// Scores a drummer playing along on an e-kit: every note from a MIDI input is mapped to a DrumPart
+// (through the same General MIDI key table as the chart) and matched against the chart's hits on that part
+//
+// Each part has a cursor into the chart's per-part hit lists (DrumChart.getPartHit), at the first hit not judged yet,
+// so matching an input only looks at that hit & the next one: constant time, no allocation, no scanning.
+// Hits the cursor passes without being played are misses, reported as soon as they're out of reach
+public class HitScorer implements Receiver {
+
+    public enum Judgement { ON_TIME, EARLY, LATE, MISS, EXTRA }
+
+    // Called on the thread that delivered the input (or update's), hit is -1 for an EXTRA
+    // songNanos is when the input was played, or for a MISS when it was found missed
+    public interface Listener {
+        void judged(Judgement judgement, DrumPart part, int hit, long songNanos, long offsetNanos);
+    }
+
+    // A hit within onTimeNanos of the chart is on time, within hitNanos early or late, further off a miss
+    public record Windows(long onTimeNanos, long hitNanos) {
+        public Windows {
+            if (onTimeNanos < 0 || hitNanos < onTimeNanos)
+                throw new IllegalArgumentException("Windows must satisfy 0 <= on time <= hit: " + onTimeNanos + ", " + hitNanos);
+        }
+    }
+
+    // From -Ddrumvis.onTimeMillis & -Ddrumvis.hitWindowMillis (30 & 100 ms by default)
+    public static final Windows DEFAULT_WINDOWS = new Windows(
+            Long.getLong("drumvis.onTimeMillis", 30) * 1_000_000, Long.getLong("drumvis.hitWindowMillis", 100) * 1_000_000);
+
+    private final DrumChart chart;      // Only scored once it's complete
+    private final LongSupplier songNanos;   // Song time being heard, what the drummer plays along to
+    private final Windows windows;
+    private final Listener listener;
+
+    private final int[] cursors = new int[PARTS];   // Per part, index into the chart's part hit list
+    private boolean positioned;
+    private final int[] counts = new int[Judgement.values().length];
+    private long totalOffsetNanos;      // Of hits played, early < 0
+    private long totalAbsOffsetNanos;
+
+    public HitScorer(DrumChart chart, LongSupplier songNanos, Windows windows, Listener listener) {
+        this.chart = chart;
+        this.songNanos = songNanos;
+        this.windows = windows;
+        this.listener = listener;
+    }
+
+    // Plays a song's chart into a scorer through a LoopbackTransmitter & checks every judgement is counted:
+    // hits on time, early, late, every 10th skipped, and extras on drums with no hit anywhere near
+    //   HitScorer [song.mid]
+    public static void main(String[] args) throws Exception {
+        DrumChart chart = new Song(MidiFile.load(args.length > 0 ? args[0] : "src/main/resources/Numb.mid")).getDrumChart();
+        if (chart.size() == 0) {
+            System.out.println("No drum hits to score");
+            return;
+        }
+        Windows windows = DEFAULT_WINDOWS;
+        long offset = (windows.onTimeNanos() + windows.hitNanos()) / 2;     // Early or late, but within the window
+        long clear = windows.hitNanos() + 2 * offset;  // Hits this far from the others on their part can't be mistaken
+
+        int[] keys = new int[PARTS];        // A key that plays each part
+        for (int key = 127; key >= 0; key--)
+            if (DrumPart.fromKey(key) != null) keys[DrumPart.fromKey(key).ordinal()] = key;
+
+        // Only hits well clear of their neighbours are played off time or skipped, the rest are played on time
+        long[] gaps = new long[chart.size()];
+        for (int p = 0; p < PARTS; p++) {
+            for (int i = chart.getPartStart(p); i < chart.getPartStart(p + 1); i++) {
+                int hit = chart.getPartHitAt(i);
+                long before = i > chart.getPartStart(p) ? chart.getNanos(hit) - chart.getNanos(chart.getPartHitAt(i - 1)) : Long.MAX_VALUE;
+                long after = i + 1 < chart.getPartStart(p + 1) ? chart.getNanos(chart.getPartHitAt(i + 1)) - chart.getNanos(hit) : Long.MAX_VALUE;
+                gaps[hit] = Math.min(before, after);
+            }
+        }
+
+        int[] expected = new int[Judgement.values().length];
+        List<long[]> inputs = new ArrayList<>();    // Song time & part of every input
+        for (int hit = 0; hit < chart.size(); hit++) {
+            long nanos = chart.getNanos(hit);
+            Judgement judgement = gaps[hit] < clear ? Judgement.ON_TIME : switch (hit % 10) {
+                case 3, 4, 5 -> Judgement.EARLY;
+                case 6, 7, 8 -> Judgement.LATE;
+                case 9 -> Judgement.MISS;
+                default -> Judgement.ON_TIME;
+            };
+            expected[judgement.ordinal()]++;
+            switch (judgement) {
+                case EARLY -> inputs.add(new long[]{nanos - offset, chart.getPartOrdinal(hit)});
+                case LATE -> inputs.add(new long[]{nanos + offset, chart.getPartOrdinal(hit)});
+                case ON_TIME -> inputs.add(new long[]{nanos, chart.getPartOrdinal(hit)});
+            }
+            if (hit % 10 == 4) {
+                for (int p = 0; p < PARTS; p++) {
+                    if (p != chart.getPartOrdinal(hit) && distance(chart, p, nanos) >= clear) {
+                        inputs.add(new long[]{nanos, p});
+                        expected[Judgement.EXTRA.ordinal()]++;
+                        break;
+                    }
+                }
+            }
+        }
+        inputs.sort(Comparator.comparingLong(input -> input[0]));
+
+        long[] now = new long[1];
+        HitScorer scorer = new HitScorer(chart, () -> now[0], windows, null);
+        LoopbackTransmitter input = new LoopbackTransmitter();
+        input.setReceiver(scorer);
+        for (long[] played : inputs) {
+            now[0] = played[0];
+            input.hit(keys[(int) played[1]], 100);
+        }
+        scorer.update(chart.getNanos(chart.size() - 1) + windows.hitNanos() + 1);
+        input.close();
+
+        System.out.println(scorer);
+        if (!Arrays.equals(scorer.counts, expected))
+            throw new IllegalStateException("Expected " + Arrays.toString(expected) + " of " + Arrays.toString(Judgement.values())
+                    + ", counted " + Arrays.toString(scorer.counts));
+        System.out.println("All " + inputs.size() + " inputs & " + chart.size() + " hits judged as expected");
+    }
+
+    // How far a song time is from the nearest hit on a part
+    private static long distance(DrumChart chart, int p, long songNanos) {
+        long distance = Long.MAX_VALUE;
+        for (int i = chart.getPartStart(p); i < chart.getPartStart(p + 1); i++)
+            distance = Math.min(distance, Math.abs(chart.getNanos(chart.getPartHitAt(i)) - songNanos));
+        return distance;
+    }
+
+    // Takes note-ons from a MIDI input, at the song time heard when they arrive
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (!(message instanceof ShortMessage note) || note.getCommand() != ShortMessage.NOTE_ON || note.getData2() == 0)
+            return;
+        DrumPart part = DrumPart.fromKey(note.getData1());
+        if (part != null)
+            hit(part, songNanos.getAsLong());
+    }
+
+    @Override
+    public void close() {}
+
+    // Judges a hit on a part at a song time
+    public synchronized void hit(DrumPart part, long songNanos) {
+        if (!ready(songNanos)) return;
+        int p = part.ordinal();
+        int end = chart.getPartStart(p + 1);
+        int cursor = sweep(p, songNanos);
+
+        if (cursor < end) {
+            long offset = songNanos - chart.getNanos(chart.getPartHitAt(cursor));
+            // Closer to the hit after, the drummer skipped this one
+            if (cursor + 1 < end) {
+                long nextOffset = songNanos - chart.getNanos(chart.getPartHitAt(cursor + 1));
+                if (Math.abs(nextOffset) < Math.abs(offset)) {
+                    judge(Judgement.MISS, part, chart.getPartHitAt(cursor++), songNanos, 0);
+                    offset = nextOffset;
+                }
+            }
+            if (Math.abs(offset) <= windows.hitNanos()) {
+                Judgement judgement = Math.abs(offset) <= windows.onTimeNanos() ? Judgement.ON_TIME
+                        : offset < 0 ? Judgement.EARLY : Judgement.LATE;
+                totalOffsetNanos += offset;
+                totalAbsOffsetNanos += Math.abs(offset);
+                judge(judgement, part, chart.getPartHitAt(cursor++), songNanos, offset);
+                cursors[p] = cursor;
+                return;
+            }
+        }
+        cursors[p] = cursor;
+        judge(Judgement.EXTRA, part, -1, songNanos, 0);
+    }
+
+    // Reports every hit that can't be played anymore by a song time as missed (call it every frame)
+    public synchronized void update(long songNanos) {
+        if (!ready(songNanos)) return;
+        for (int p = 0; p < PARTS; p++)
+            cursors[p] = sweep(p, songNanos);
+    }
+
+    // Moves a part's cursor past the hits too far behind to still be played, which were missed
+    private int sweep(int p, long songNanos) {
+        int cursor = cursors[p];
+        int end = chart.getPartStart(p + 1);
+        while (cursor < end && chart.getNanos(chart.getPartHitAt(cursor)) < songNanos - windows.hitNanos()) {
+            int hit = chart.getPartHitAt(cursor++);
+            judge(Judgement.MISS, chart.getPart(hit), hit, songNanos, 0);
+        }
+        return cursor;
+    }
+
+    // Carries on scoring from a song time after a seek or loop wrap, without counting what was skipped
+    public synchronized void seek(long songNanos) {
+        if (!chart.isComplete()) return;
+        for (int p = 0; p < PARTS; p++) {
+            int low = chart.getPartStart(p), high = chart.getPartStart(p + 1);
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (chart.getNanos(chart.getPartHitAt(mid)) < songNanos) low = mid + 1;
+                else high = mid;
+            }
+            cursors[p] = low;
+        }
+        positioned = true;
+    }
+
+    // Scoring starts once a streamed song's chart is complete, from wherever the song is then
+    private boolean ready(long songNanos) {
+        if (!chart.isComplete()) return false;
+        if (!positioned) seek(songNanos - windows.hitNanos());
+        return true;
+    }
+
+    private void judge(Judgement judgement, DrumPart part, int hit, long songNanos, long offsetNanos) {
+        counts[judgement.ordinal()]++;
+        if (listener != null)
+            listener.judged(judgement, part, hit, songNanos, offsetNanos);
+    }
+
+    /*=============== MIDI Input ===============*/
+
+    // Opens the first MIDI input whose name contains some text ("" for the system's default input)
+    public static Transmitter openInput(String name) throws MidiUnavailableException {
+        if (name.isEmpty())
+            return MidiSystem.getTransmitter();
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            if (!info.getName().contains(name)) continue;
+            MidiDevice device = MidiSystem.getMidiDevice(info);
+            if (device.getMaxTransmitters() == 0) continue;
+            device.open();
+            return device.getTransmitter();
+        }
+        throw new MidiUnavailableException("No MIDI input named " + name);
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public synchronized int getCount(Judgement judgement) {
+        return counts[judgement.ordinal()];
+    }
+
+    // Hits played within the window, out of those played or missed
+    public synchronized double getAccuracy() {
+        int played = counts[Judgement.ON_TIME.ordinal()] + counts[Judgement.EARLY.ordinal()] + counts[Judgement.LATE.ordinal()];
+        int expected = played + counts[Judgement.MISS.ordinal()];
+        return expected == 0 ? 1 : (double) played / expected;
+    }
+
+    // Average timing of hits played, early < 0, e.g. a drummer rushing
+    public synchronized long getMeanOffsetNanos() {
+        int played = counts[Judgement.ON_TIME.ordinal()] + counts[Judgement.EARLY.ordinal()] + counts[Judgement.LATE.ordinal()];
+        return played == 0 ? 0 : totalOffsetNanos / played;
+    }
+
+    public synchronized long getMeanAbsOffsetNanos() {
+        int played = counts[Judgement.ON_TIME.ordinal()] + counts[Judgement.EARLY.ordinal()] + counts[Judgement.LATE.ordinal()];
+        return played == 0 ? 0 : totalAbsOffsetNanos / played;
+    }
+
+    public Windows getWindows() {
+        return windows;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%.1f%% accuracy: %d on time, %d early, %d late, %d missed, %d extra, mean offset %+.1f ms",
+                getAccuracy() * 100, counts[0], counts[1], counts[2], counts[3], counts[4], getMeanOffsetNanos() / 1e6);
+    }
+
+    private static final int PARTS = DrumPart.values().length;
+}
@@ -0,0 +1,183 @@
+package org.visuals;
+
+import org.audio.MusicHandler;
+import org.midireading.PackedMessage;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+// Records a practice run to a compact binary log (see PracticeRecording for the format & reading it back):
+// what was played on the input, how every expected hit was judged, and the song clock, speed & loop as they change
+//
+// The file is preallocated & mapped up front, so recording is a few stores into memory: nothing is allocated,
+// locked or written through on the thread recording (the input's, the scorer's or the UI's), and any thread can record
+// Each record claims its slot with one atomic increment and is published by writing its kind last
+// A full file drops further records (counted) rather than waiting, close() trims it to what was recorded
+public class PracticeRecorder implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+    private final int capacity;         // Records that fit
+    private final long startNanos;      // Record times are System.nanoTime() since this
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger writing = new AtomicInteger();    // Records being written right now
+    private volatile boolean closed;
+
+    private PracticeRecorder(FileChannel channel, MappedByteBuffer buf, int capacity) {
+        this.channel = channel;
+        this.buf = buf;
+        this.capacity = capacity;
+        startNanos = System.nanoTime();
+    }
+
+    // Creates (or replaces) a recording of a song, with room for capacityBytes of records
+    // Zeroes the whole file through the channel first, so no page is allocated on disk while recording
+    public static PracticeRecorder create(Path path, Path songPath, HitScorer.Windows windows, long capacityBytes)
+            throws IOException {
+        int capacity = (int) Math.min(capacityBytes / PracticeRecording.RECORD_BYTES, Integer.MAX_VALUE - 1);
+        long size = PracticeRecording.HEADER_BYTES + (long) capacity * PracticeRecording.RECORD_BYTES;
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATE_CHUNK);
+            for (long pos = 0; pos < size; pos += PREALLOCATE_CHUNK) {
+                zeros.clear().limit((int) Math.min(PREALLOCATE_CHUNK, size - pos));
+                while (zeros.hasRemaining())
+                    channel.write(zeros, pos + zeros.position());
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            byte[] song = songPath.toString().getBytes(StandardCharsets.UTF_8);
+            if (song.length > PracticeRecording.MAX_PATH_BYTES)
+                throw new IOException("Song path too long to record: " + songPath);
+            buf.putInt(PracticeRecording.MAGIC).putInt(PracticeRecording.VERSION)
+                    .putLong(System.currentTimeMillis())
+                    .putLong(windows.onTimeNanos()).putLong(windows.hitNanos())
+                    .putInt(PracticeRecording.RECORDING).putInt(0)
+                    .putShort((short) song.length).put(song);
+            return new PracticeRecorder(channel, buf, capacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /*=============== Recording ===============*/
+
+    // An input message, at the song time heard when it came in
+    public void input(MidiMessage message, long songNanos) {
+        if (message instanceof ShortMessage note)
+            append(PracticeRecording.INPUT, PackedMessage.pack(note.getStatus(), note.getData1(), note.getData2()), 0, songNanos);
+    }
+
+    // A hit judged by a HitScorer (see HitScorer.Listener)
+    public void judged(HitScorer.Judgement judgement, DrumPart part, int hit, long songNanos) {
+        append(PracticeRecording.JUDGEMENT, judgement.ordinal() << 8 | part.ordinal(), hit, songNanos);
+    }
+
+    // Where the song clock is, how fast it's going & whether it's paused
+    // Recorded after every seek, speed change, pause & resume (and now and then besides)
+    public void clock(MusicHandler music) {
+        append(PracticeRecording.CLOCK, music.isPaused() ? 1 : 0, (int) Math.round(music.getSpeed() * PracticeRecording.SPEED_SCALE),
+                music.getSongNanos());
+    }
+
+    // The A-B loop, whenever it's set or cleared
+    public void loop(MusicHandler.LoopRegion loop) {
+        if (loop == null)
+            append(PracticeRecording.LOOP, 0, -1, 0);
+        else
+            append(PracticeRecording.LOOP, 0, (int) Math.min(loop.getLengthNanos() / 1000, Integer.MAX_VALUE), loop.startNanos());
+    }
+
+    // A receiver that records every input before passing it on (e.g. to a HitScorer)
+    public Receiver tap(Receiver next, LongSupplier songNanos) {
+        return new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                input(message, songNanos.getAsLong());
+                next.send(message, timeStamp);
+            }
+
+            @Override
+            public void close() {
+                next.close();
+            }
+        };
+    }
+
+    private void append(int type, int data, int value, long songNanos) {
+        writing.incrementAndGet();
+        try {
+            if (closed) return;
+            int index = next.getAndIncrement();
+            if (index >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+            int pos = PracticeRecording.HEADER_BYTES + index * PracticeRecording.RECORD_BYTES;
+            buf.putInt(pos + 4, value);
+            buf.putLong(pos + 8, System.nanoTime() - startNanos);
+            buf.putLong(pos + 16, songNanos);
+            // A reader of a file still being recorded stops at the first record without a kind
+            KIND.setRelease(buf, pos, type << 24 | data);
+        } finally {
+            writing.decrementAndGet();
+        }
+    }
+
+    // Finishes the header, writes the records out & trims the unused space
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        // Records already past the closed check finish first, the file can't shrink under them
+        while (writing.get() != 0)
+            Thread.onSpinWait();
+        int count = Math.min(next.get(), capacity);
+        buf.putInt(PracticeRecording.COUNT_OFFSET, count);
+        buf.putInt(PracticeRecording.COUNT_OFFSET + 4, dropped.get());
+        buf.force();
+        try {
+            channel.truncate(PracticeRecording.HEADER_BYTES + (long) count * PracticeRecording.RECORD_BYTES);
+        } catch (IOException e) {
+            // Some platforms can't shrink a mapped file, the count in the header still says where the records end
+        }
+        channel.close();
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public int getCount() {
+        return Math.min(next.get(), capacity);
+    }
+
+    // Records that didn't fit
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Room for records, from -Ddrumvis.recordMegabytes (16 MB, around 700,000 records, by default)
+    public static final long DEFAULT_CAPACITY_BYTES = Long.getLong("drumvis.recordMegabytes", 16) << 20;
+    private static final int PREALLOCATE_CHUNK = 1 << 20;
+    static final VarHandle KIND = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+}
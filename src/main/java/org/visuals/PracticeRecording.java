@@ -0,0 +1,177 @@
+package org.visuals;
+
+import org.midireading.PackedMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A practice run recorded by PracticeRecorder, mapped & read in place so it opens instantly however long it is
+//
+//  header (512 bytes): magic "DREC", version, started (epoch millis), on time & hit windows (nanos),
+//                      record count (-1 while still recording), dropped records, song path (UTF-8, short length first)
+//  records (24 bytes): kind (type << 24 | data), value, real nanos since recording started, song nanos
+//
+//  INPUT       data = the message (see PackedMessage)                          song = heard when it came in
+//  JUDGEMENT   data = judgement << 8 | part, value = chart hit (-1 if extra)   song = see HitScorer.Listener
+//  CLOCK       data = 1 if paused, value = speed in millionths                 song = song clock
+//  LOOP        value = loop length in micros (-1 if cleared)                   song = loop start
+//
+// Everything is big-endian, like SongFile
+public class PracticeRecording {
+
+    private final ByteBuffer buf;
+    private final int count;
+    private final int dropped;
+    private final long startedMillis;
+    private final HitScorer.Windows windows;
+    private final Path songPath;
+
+    private PracticeRecording(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IOException("Not a practice recording");
+            startedMillis = buf.getLong();
+            windows = new HitScorer.Windows(buf.getLong(), buf.getLong());
+            int recorded = buf.getInt();
+            dropped = buf.getInt();
+            byte[] song = new byte[buf.getShort()];
+            buf.get(song);
+            songPath = Path.of(new String(song, StandardCharsets.UTF_8));
+            count = recorded == RECORDING ? countPublished(buf) : recorded;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt practice recording", e);
+        }
+        if (HEADER_BYTES + (long) count * RECORD_BYTES > buf.capacity())
+            throw new IOException("Truncated practice recording");
+    }
+
+    // Maps a recording, which may still be being recorded (then it has whatever's recorded so far)
+    public static PracticeRecording open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new PracticeRecording(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Records written so far, up to the first slot not published yet
+    private static int countPublished(ByteBuffer buf) {
+        int count = 0;
+        for (int pos = HEADER_BYTES; pos + RECORD_BYTES <= buf.capacity(); pos += RECORD_BYTES, count++)
+            if ((int) PracticeRecorder.KIND.getAcquire(buf, pos) == 0) break;
+        return count;
+    }
+
+    /*=============== Records ===============*/
+
+    public int getType(int record) {
+        return buf.getInt(position(record)) >>> 24;
+    }
+
+    // The INPUT message (see PackedMessage), or the JUDGEMENT & CLOCK data
+    public int getData(int record) {
+        return buf.getInt(position(record)) & 0xFF_FF_FF;
+    }
+
+    public int getValue(int record) {
+        return buf.getInt(position(record) + 4);
+    }
+
+    public long getRealNanos(int record) {
+        return buf.getLong(position(record) + 8);
+    }
+
+    public long getSongNanos(int record) {
+        return buf.getLong(position(record) + 16);
+    }
+
+    public HitScorer.Judgement getJudgement(int record) {
+        return HitScorer.Judgement.values()[getData(record) >>> 8];
+    }
+
+    // The drum judged, or the drum an INPUT note is on (null if it's not a drum hit)
+    public DrumPart getPart(int record) {
+        if (getType(record) == JUDGEMENT)
+            return DrumPart.of(getData(record) & 0xFF);
+        int message = getData(record);
+        return PackedMessage.isNoteOn(message) ? DrumPart.fromKey(PackedMessage.getData1(message)) : null;
+    }
+
+    public boolean isPaused(int record) {
+        return (getData(record) & 1) != 0;
+    }
+
+    public double getSpeed(int record) {
+        return getValue(record) / (double) SPEED_SCALE;
+    }
+
+    // Loop end of a LOOP record, -1 if it cleared the loop
+    public long getLoopEndNanos(int record) {
+        int micros = getValue(record);
+        return micros < 0 ? -1 : getSongNanos(record) + micros * 1000L;
+    }
+
+    private int position(int record) {
+        return HEADER_BYTES + record * RECORD_BYTES;
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    public int size() {
+        return count;
+    }
+
+    // Records the recorder had no room for
+    public int getDropped() {
+        return dropped;
+    }
+
+    public long getStartedMillis() {
+        return startedMillis;
+    }
+
+    public HitScorer.Windows getWindows() {
+        return windows;
+    }
+
+    public Path getSongPath() {
+        return songPath;
+    }
+
+    // How many of the recorded judgements were one kind, without needing the song
+    public int getCount(HitScorer.Judgement judgement) {
+        int n = 0;
+        for (int i = 0; i < count; i++)
+            if (getType(i) == JUDGEMENT && getJudgement(i) == judgement) n++;
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        int[] counts = new int[HitScorer.Judgement.values().length];
+        for (int i = 0; i < count; i++)
+            if (getType(i) == JUDGEMENT) counts[getJudgement(i).ordinal()]++;
+        int played = counts[0] + counts[1] + counts[2];
+        int expected = played + counts[3];
+        return String.format("%s, %d records over %.1f s: %.1f%% accuracy, %d on time, %d early, %d late, %d missed, %d extra",
+                songPath.getFileName(), count, count == 0 ? 0 : getRealNanos(count - 1) / 1e9,
+                expected == 0 ? 100 : 100.0 * played / expected, counts[0], counts[1], counts[2], counts[3], counts[4]);
+    }
+
+    static final int MAGIC = 0x44524543;   // "DREC"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 512;
+    static final int RECORD_BYTES = 24;
+    static final int COUNT_OFFSET = 32;
+    static final int RECORDING = -1;
+    static final int MAX_PATH_BYTES = HEADER_BYTES - 42;
+    static final int SPEED_SCALE = 1_000_000;
+
+    public static final int INPUT = 1;
+    public static final int JUDGEMENT = 2;
+    public static final int CLOCK = 3;
+    public static final int LOOP = 4;
+}
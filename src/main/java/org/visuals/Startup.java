@@ -0,0 +1,89 @@
+package org.visuals;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Runs the independent parts of starting up (decoding the drum kit image, opening the synthesizer,
+// loading the song) at the same time, each on its own thread, while the window is already showing
+// Every stage's start & end is recorded from the moment the JVM launched, so it's clear where startup time goes
+public class Startup {
+
+    // When a stage started & finished, in nanoseconds after launch
+    public record Stage(String name, long startNanos, long endNanos) {
+        public long getDurationNanos() {
+            return endNanos - startNanos;
+        }
+    }
+
+    private final long launchNanos;     // System.nanoTime() at JVM launch
+    private final List<Stage> stages = new ArrayList<>();
+
+    public Startup() {
+        // The process start is only known to the millisecond, and not on every platform
+        Instant launch = ProcessHandle.current().info().startInstant().orElse(null);
+        long sinceLaunch = launch == null ? 0 : Duration.between(launch, Instant.now()).toNanos();
+        launchNanos = System.nanoTime() - Math.max(0, sinceLaunch);
+    }
+
+    // Runs a stage on its own thread
+    public <T> CompletableFuture<T> stage(String name, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Thread.ofPlatform().daemon().name("startup-" + name).start(() -> {
+            long start = System.nanoTime();
+            try {
+                T value = task.call();
+                record(name, start, System.nanoTime());
+                result.complete(value);
+            } catch (Throwable e) {
+                record(name, start, System.nanoTime());
+                result.completeExceptionally(new CompletionException(name + " failed", e));
+            }
+        });
+        return result;
+    }
+
+    // Runs a stage once the stages it needs are done, on its own thread
+    public <T> CompletableFuture<T> stageAfter(String name, Callable<T> task, CompletableFuture<?>... needs) {
+        return CompletableFuture.allOf(needs).thenCompose(ignored -> stage(name, task));
+    }
+
+    // Records a moment, like the first frame being drawn
+    public void mark(String name) {
+        long now = System.nanoTime();
+        record(name, now, now);
+    }
+
+    private synchronized void record(String name, long startNanos, long endNanos) {
+        stages.add(new Stage(name, startNanos - launchNanos, endNanos - launchNanos));
+    }
+
+    /*=============== Accessor Methods ===============*/
+
+    // Every stage & mark so far, in the order they finished
+    public synchronized List<Stage> getStages() {
+        return List.copyOf(stages);
+    }
+
+    // Nanoseconds since the JVM launched
+    public long getElapsedNanos() {
+        return System.nanoTime() - launchNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder("Startup (ms after launch):");
+        for (Stage stage : stages) {
+            if (stage.getDurationNanos() == 0)
+                out.append(String.format("%n  %-12s          at %6.1f", stage.name(), stage.endNanos() / 1e6));
+            else
+                out.append(String.format("%n  %-12s %6.1f ms, %6.1f - %6.1f", stage.name(), stage.getDurationNanos() / 1e6,
+                        stage.startNanos() / 1e6, stage.endNanos() / 1e6));
+        }
+        return out.toString();
+    }
+}
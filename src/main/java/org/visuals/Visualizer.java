@@ -1,10 +1,14 @@
 package org.visuals;
 
+import org.audio.DirectAudioOutput;
+import org.audio.InstrumentLoader;
+import org.audio.Metronome;
 import org.audio.MusicHandler;
-import org.midireading.MIDIFormatter;
-import org.midireading.TrackSettings;
+import org.songs.Song;
+import org.songs.SongCache;
 
-import javax.sound.midi.*;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Transmitter;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionListener;
@@ -15,10 +19,12 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import javax.imageio.ImageIO;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.EnumMap;
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Visualizer extends JPanel {
 
@@ -27,9 +33,9 @@ public class Visualizer extends JPanel {
     private final int CENTER_X = WIDTH / 2;
     private final int CENTER_Y = HEIGHT / 2;
 
-    private final BufferedImage drumKitImage;
-    private final int DRUM_X;
-    private final int DRUM_Y;
+    private BufferedImage drumKitImage;     // null until decoded
+    private int DRUM_X;
+    private int DRUM_Y;
 
     private final int REFRESH_RATE = 16;
 
@@ -37,15 +43,20 @@ public class Visualizer extends JPanel {
 
     /*====================== Actual visualizer stuff ======================*/
 
-    private final double SLOW_FACTOR = 1;
+    private final String songPathname;
+    private final Startup startup = new Startup();
+    private Throwable startupFailure;
+    private boolean firstFrameDrawn;
+    private boolean playing;            // First frame of the song has been drawn
 
-    private final String songPathname = "src/main/resources/Numb.mid";
+    // Songs stay loaded between switches, and the songs next to this one in its folder are loaded in the background
+    private static final SongCache songCache = new SongCache(64L << 20);
 
     Map<DrumPart, Vec3> drumPoints;
     static final Vec3 WRIST_LEFT = new Vec3(-50, -40);
     static final Vec3 WRIST_RIGHT = new Vec3(30, -40);
-    Stick leftStick  = new Stick(WRIST_LEFT, null);
-    Stick rightStick = new Stick(WRIST_RIGHT, null);
+    Stick leftStick  = new Stick(WRIST_LEFT, true);
+    Stick rightStick = new Stick(WRIST_RIGHT, false);
 
     static final Vec3 METRONOME_PIVOT = new Vec3(-25, 250);
     static final double METRONOME_LENGTH = 40;
@@ -53,101 +64,95 @@ public class Visualizer extends JPanel {
     int[] metronome_corners_x;
     int[] metronome_corners_y;
 
-    // Constants for mapping to drumPoints
-    private enum DrumPart {
-        SNARE, HI_TOM, MID_TOM, FLOOR_TOM,
-        HI_HAT, CRASH, RIDE, CRASH_2,
-        KICK, HI_HAT_PEDAL,
-        MISC
-    }
-
-    // Maps the general MIDI Percussion Map to drumPoint indices (offset by 35)
-    DrumPart[] drumKeyMap = new DrumPart[] {
-            DrumPart.KICK,			// Acoustic Bass Drum
-            DrumPart.KICK,			// Bass Drum 1
-            DrumPart.MISC,			// Side Stick
-            DrumPart.SNARE,			// Acoustic Snare
-            DrumPart.SNARE,			// Hand Clap
-            DrumPart.SNARE,			// Electric Snare
-            DrumPart.FLOOR_TOM,		// Low Floor Tom
-            DrumPart.HI_HAT,		// Closed Hi Hat
-            DrumPart.FLOOR_TOM,		// High Floor Tom
-            DrumPart.HI_HAT_PEDAL,	// Pedal Hi-Hat
-            DrumPart.FLOOR_TOM,		// Low Tom
-            DrumPart.HI_HAT,		// Open Hi-Hat
-            DrumPart.MID_TOM,		// Low-Mid Tom
-            DrumPart.MID_TOM,		// Hi Mid Tom
-            DrumPart.CRASH,			// Crash Cymbal 1
-            DrumPart.HI_TOM,		// High Tom
-            DrumPart.RIDE,			// Ride Cymbal 1
-            DrumPart.CRASH,			// Chinese Cymbal
-            DrumPart.RIDE,			// Ride Bell
-            DrumPart.HI_HAT,		// Tambourine
-            DrumPart.CRASH_2,		// Splash Cymbal
-            DrumPart.MISC,			// Cowbell
-            DrumPart.CRASH_2,		// Crash Cymbal 2
-            DrumPart.MISC,			// Vibraslap
-            DrumPart.RIDE,			// Ride Cymbal 2
-            DrumPart.HI_TOM,		// Hi Bongo
-            DrumPart.MID_TOM,		// Low Bongo
-            DrumPart.HI_TOM,		// Mute Hi Conga
-            DrumPart.HI_TOM,		// Open Hi Conga
-            DrumPart.MID_TOM,		// Low Conga
-            DrumPart.HI_TOM,		// High Timbale
-            DrumPart.MID_TOM,		// Low Timbale
-            DrumPart.MISC,			// High Agogo
-            DrumPart.MISC,			// Low Agogo
-            DrumPart.HI_HAT,		// Cabasa
-            DrumPart.HI_HAT,		// Maracas
-            DrumPart.MISC,			// Short Whistle
-            DrumPart.MISC,			// Long Whistle
-            DrumPart.MISC,			// Short Guiro
-            DrumPart.MISC,			// Long Guiro
-            DrumPart.MISC,			// Claves
-            DrumPart.MISC,			// Hi Wood Block
-            DrumPart.MISC,			// Low Wood Block
-            DrumPart.HI_TOM,		// Mute Cuica
-            DrumPart.HI_TOM,		// Open Cuica
-            DrumPart.MISC,			// Mute Triangle
-            DrumPart.MISC			// Open Triangle
-    };
-
     // Song stuff
-    Sequence sequence;
+    Song song;
+    MusicHandler music;
+    DrumChart chart;
     int songIndex = 0;
-    List<DrumHit> song = new ArrayList<>();
 
     // Limited size effect queue (any extra are ignored)
     HitEffect[] effects = new HitEffect[16];
 
     long nextBeatNanos = 0;
-    long deltaBeatNanos;
-    long programStartNanos;
-
-    private Visualizer() throws Exception {
-        // Load the drum kit image once when the panel is created
-        try {
-            drumKitImage = ImageIO.read(new File("src/main/resources/drums_600x600.png"));
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to load drum kit image.");
-        }
-
-        // Ensure drums are centered on-screen
-        DRUM_X = (WIDTH - drumKitImage.getWidth(null)) / 2;
-        DRUM_Y = (HEIGHT - drumKitImage.getHeight(null)) / 2;
+    long loopPass = 0;                  // Times the A-B loop has gone back to its start, as heard
+    int loopStartBar = -1;              // Marked with [ until ] closes the loop
+
+    // Playing along on an e-kit (-Ddrumvis.midiInput), judgements come in on the input's thread
+    HitScorer scorer;
+    Transmitter input;
+    private record Judged(HitScorer.Judgement judgement, DrumPart part) {}
+    private final ConcurrentLinkedQueue<Judged> judged = new ConcurrentLinkedQueue<>();
+    HitScorer.Judgement lastJudgement;
+
+    // Practice runs are recorded with -Ddrumvis.record, and played back from a recording with -Ddrumvis.replay
+    private final PracticeRecording replay;
+    private PracticeRecorder recorder;
+    private MusicHandler.LoopRegion recordedLoop;
+    private long lastClockRecordNanos;
+    private int replayIndex;
+    private long replayStartNanos;      // System.nanoTime() the recording's real time counts from
+    private long replayScoreNanos;      // Heard song time the replay has scored up to, from the records
+    private long replayClockNanos = -1; // Last CLOCK record replayed: its song & real time,
+    private long replayClockRealNanos;  // and how fast the song was going then (0 if paused)
+    private double replayClockRate;
+
+    private Visualizer(String songPathname, PracticeRecording replay) {
+        this.songPathname = songPathname;
+        this.replay = replay;
 
         // Optional: Set panel size (or let JFrame pack it)
         setPreferredSize(new Dimension(WIDTH, HEIGHT));
         setBackground(Color.WHITE);
 
-        // Add KeyListener for early escaping [ esc ]
+        // Add KeyListener for early escaping [ esc ], pausing [ space ], seeking [ arrows, home ], speed [ - = ]
+        // looping bars [ [ ] \ ] and metronome subdivisions [ m ]
         this.addKeyListener(new KeyListener() {
             @Override
             public void keyPressed(KeyEvent e) {
+                // Nothing to control until the song is playing, and a replay plays the recorded controls
+                if (music == null || replay != null) return;
+
                 // Check for Escape key press
 //                if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
 //                    System.exit(0);  // Exit the program
 //                }
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_SPACE -> {
+                        if (music.isPaused()) music.resume();
+                        else music.pause();
+                    }
+                    case KeyEvent.VK_LEFT -> music.seek(getSongNanos() - SEEK_NANOS);
+                    case KeyEvent.VK_RIGHT -> music.seek(getSongNanos() + SEEK_NANOS);
+                    case KeyEvent.VK_DOWN -> music.seekToBar(music.getBar() - 1);
+                    case KeyEvent.VK_UP -> music.seekToBar(music.getBar() + 1);
+                    case KeyEvent.VK_HOME -> music.seek(0);
+                    case KeyEvent.VK_OPEN_BRACKET -> {
+                        loopStartBar = music.getBar();
+                        return;
+                    }
+                    case KeyEvent.VK_CLOSE_BRACKET -> {
+                        // Loops from the marked bar (or just this one) to the end of this bar
+                        int bar = music.getBar();
+                        int start = loopStartBar >= 0 ? Math.min(loopStartBar, bar) : bar;
+                        music.setLoopBars(start, Math.max(loopStartBar, bar) + 1);
+                        loopStartBar = -1;
+                    }
+                    case KeyEvent.VK_BACK_SLASH -> {
+                        music.clearLoop();
+                        loopStartBar = -1;
+                    }
+                    case KeyEvent.VK_MINUS, KeyEvent.VK_EQUALS -> {
+                        // Nothing jumps, so the sticks just carry on at the new pace
+                        changeSpeed(e.getKeyCode() == KeyEvent.VK_MINUS ? -SPEED_STEP : SPEED_STEP);
+                        return;
+                    }
+                    case KeyEvent.VK_M -> {
+                        music.setSubdivision(music.getSubdivision().next());
+                        return;
+                    }
+                    default -> { return; }
+                }
+                followMusic();
             }
 
             @Override
@@ -161,24 +166,199 @@ public class Visualizer extends JPanel {
         setFocusable(true);
         requestFocusInWindow();  // Request focus explicitly so it can capture key events
 
-        MusicHandler music = new MusicHandler(songPathname, SLOW_FACTOR);
+        // The window shows a loading screen right away, while the image, synthesizer & song load at the same time
+        CompletableFuture<BufferedImage> image = startup.stage("image", Visualizer::readDrumKitImage);
+        CompletableFuture<Audio> audio = startup.stage("synthesizer", Visualizer::openAudio);
+        // Songs that aren't compiled yet start playing while the rest of the file is decoded
+        CompletableFuture<Song> loadedSong = startup.stage("song", () -> songCache.stream(Path.of(songPathname)));
+        CompletableFuture<MusicHandler> loadedMusic = startup.stageAfter("music", () ->
+                new MusicHandler(loadedSong.join(), audio.join().synth(), audio.join().output()), loadedSong, audio);
+
+        image.whenComplete((decoded, failure) -> SwingUtilities.invokeLater(() -> {
+            if (failure != null) System.err.println("Failed to load drum kit image: " + failure.getCause());
+            else showDrumKit(decoded);
+        }));
+        // Preallocating the recording's file is done while everything else loads too
+        String recordPath = replay == null ? System.getProperty("drumvis.record") : null;
+        CompletableFuture<PracticeRecorder> loadedRecorder = recordPath == null ? CompletableFuture.completedFuture(null)
+                : startup.stage("recorder", () -> PracticeRecorder.create(Path.of(recordPath), Path.of(songPathname),
+                        HitScorer.DEFAULT_WINDOWS, PracticeRecorder.DEFAULT_CAPACITY_BYTES));
+
+        CompletableFuture.allOf(loadedMusic, loadedRecorder).whenComplete((ignored, failure) -> SwingUtilities.invokeLater(() -> {
+            if (failure != null) {
+                startupFailure = failure;
+                failure.printStackTrace();
+            } else
+                play(loadedSong.join(), loadedMusic.join(), loadedRecorder.join());
+        }));
+
+        // Audio gets its own dispatch thread, the timer only refreshes the display
+        ActionListener taskPerformer = event -> repaint();
+        Timer timer = new Timer(REFRESH_RATE, taskPerformer);
+        timer.start();
+    }
+
+    // Synthesizer & the low-latency output it plays through, if there is one
+    private record Audio(Synthesizer synth, DirectAudioOutput output) {}
+
+    private static Audio openAudio() throws Exception {
+        DirectAudioOutput output = DirectAudioOutput.DEFAULT_BUFFER_FRAMES > 0 ?
+                DirectAudioOutput.open(DirectAudioOutput.DEFAULT_BUFFER_FRAMES) : null;
+        Synthesizer synth = output != null ? output.getSynthesizer() : MusicHandler.openSynthesizer();
+        // Reading the soundbank belongs with the synthesizer, the song's instruments are loaded from it later
+        InstrumentLoader.soundbankFor(synth);
+        return new Audio(synth, output);
+    }
+
+    private static BufferedImage readDrumKitImage() throws IOException {
+        BufferedImage image = ImageIO.read(new File(DRUM_KIT_IMAGE));
+        if (image == null) throw new IOException("Unsupported image format: " + DRUM_KIT_IMAGE);
+        return image;
+    }
+
+    private void showDrumKit(BufferedImage image) {
+        // Ensure drums are centered on-screen
+        DRUM_X = (WIDTH - image.getWidth(null)) / 2;
+        DRUM_Y = (HEIGHT - image.getHeight(null)) / 2;
+        drumKitImage = image;
+        repaint();
+    }
+
+    // Starts the song once it & the synthesizer are ready
+    private void play(Song song, MusicHandler music, PracticeRecorder recorder) {
+        this.song = song;
+        // The songs around this one in its folder load once it's fully decoded, so they don't hold it up
+        song.getCompletion().thenRun(() -> songCache.prefetchNeighbours(Path.of(songPathname), PREFETCH_NEIGHBOURS));
         setup();
+        this.music = music;
+        this.recorder = recorder;
+        music.getCompletion().thenRun(() -> {
+            if (scorer != null) System.out.println(scorer);
+            System.exit(0);
+        });
+        if (recorder != null)
+            Runtime.getRuntime().addShutdownHook(new Thread(this::closeRecorder));
+        String inputName = System.getProperty("drumvis.midiInput");
+        if (replay != null) {
+            // Recorded inputs are scored again, at the song times they were played
+            scorer = new HitScorer(chart, music::getAudibleSongNanos, replay.getWindows(), this::judged);
+            replayStartNanos = System.nanoTime() - (replay.size() > 0 ? replay.getRealNanos(0) : 0);
+        } else if (inputName != null)
+            listen(inputName);
+        music.start();
+        recordClock();
+        repaint();
+    }
 
-        // Set up a timer for music playback and refreshing the display
-        ActionListener taskPerformer = event -> {
-            music.loop();
-            repaint();
-            music.endIfOver();
-        };
-        Timer timer = new Timer(REFRESH_RATE, taskPerformer);
+    // Scores what's played on a MIDI input against the chart, as it's heard
+    private void listen(String inputName) {
+        try {
+            input = HitScorer.openInput(inputName);
+        } catch (Exception e) {
+            System.err.println("Failed to open MIDI input " + inputName + ": " + e);
+            return;
+        }
+        scorer = new HitScorer(chart, music::getAudibleSongNanos, HitScorer.DEFAULT_WINDOWS, this::judged);
+        input.setReceiver(recorder != null ? recorder.tap(scorer, music::getAudibleSongNanos) : scorer);
+    }
 
-        programStartNanos = System.nanoTime();
+    // Hands a judgement to the next frame (& the recording)
+    private void judged(HitScorer.Judgement judgement, DrumPart part, int hit, long songNanos, long offsetNanos) {
+        judged.add(new Judged(judgement, part));
+        if (recorder != null) recorder.judged(judgement, part, hit, songNanos);
+    }
 
-        timer.start();
+    /*=============== Recording & Replay ===============*/
+
+    // Records where the song clock is, and the loop if it changed
+    private void recordClock() {
+        if (recorder == null) return;
+        recorder.clock(music);
+        lastClockRecordNanos = System.nanoTime();
+        if (music.getLoop() != recordedLoop)
+            recorder.loop(recordedLoop = music.getLoop());
     }
 
-    // Processes a midi file into drum instructions
-    public void setup() throws Exception {
+    private void closeRecorder() {
+        try {
+            recorder.close();
+            System.err.printf("Recorded %d events to %s%s%n", recorder.getCount(), System.getProperty("drumvis.record"),
+                    recorder.getDropped() > 0 ? " (" + recorder.getDropped() + " didn't fit)" : "");
+        } catch (IOException e) {
+            System.err.println("Failed to finish recording: " + e);
+        }
+    }
+
+    // Plays every recorded record that's come due: inputs are scored, the clock, speed & loop are followed
+    private void replayRecords() {
+        long realNanos = System.nanoTime() - replayStartNanos;
+        boolean moved = false;
+        for (; replayIndex < replay.size() && replay.getRealNanos(replayIndex) <= realNanos; replayIndex++) {
+            int i = replayIndex;
+            switch (replay.getType(i)) {
+                case PracticeRecording.INPUT -> {
+                    DrumPart part = replay.getPart(i);
+                    if (part != null) {
+                        scoreReplayTo(replay.getSongNanos(i), false);
+                        scorer.hit(part, replay.getSongNanos(i));
+                    }
+                }
+                case PracticeRecording.CLOCK -> {
+                    replayClock(i);
+                    music.setSpeed(replay.getSpeed(i));
+                    if (replay.isPaused(i) != music.isPaused()) {
+                        if (replay.isPaused(i)) music.pause();
+                        else music.resume();
+                        moved = true;
+                    }
+                    // Seeks, or drift too large to leave
+                    if (Math.abs(music.getSongNanos() - replay.getSongNanos(i)) > REPLAY_TOLERANCE_NANOS) {
+                        music.seek(replay.getSongNanos(i));
+                        moved = true;
+                    }
+                }
+                case PracticeRecording.LOOP -> {
+                    scorer.seek(replayScoreNanos);
+                    long endNanos = replay.getLoopEndNanos(i);
+                    if (endNanos < 0) music.clearLoop();
+                    else music.setLoop(replay.getSongNanos(i), endNanos);
+                    moved = true;
+                }
+                default -> {}   // Judgements come from scoring the inputs again
+            }
+        }
+        if (moved) followMusic();
+    }
+
+    // Scores up to a recorded CLOCK record, telling a seek from the clock running on by the records before it
+    // The clock is recorded as played, so it's moved back by the output latency to the time heard, like the inputs
+    private void replayClock(int i) {
+        long songNanos = replay.getSongNanos(i);
+        long realNanos = replay.getRealNanos(i);
+        boolean seeked = replayClockNanos >= 0 && Math.abs(songNanos - replayClockNanos
+                - Math.round((realNanos - replayClockRealNanos) * replayClockRate)) > REPLAY_TOLERANCE_NANOS;
+        replayClockNanos = songNanos;
+        replayClockRealNanos = realNanos;
+        replayClockRate = replay.isPaused(i) ? 0 : replay.getSpeed(i);
+        scoreReplayTo(songNanos - Math.round(music.getLatencyNanos() * replayClockRate), seeked);
+    }
+
+    // Moves the scorer on to a recorded song time (instead of the song being replayed, which only roughly follows it)
+    // Going back means the loop wrapped or the song was seeked: scoring picks up from there, as it did when recorded
+    private void scoreReplayTo(long songNanos, boolean seeked) {
+        MusicHandler.LoopRegion loop = music.getLoop();
+        if (songNanos < replayScoreNanos - REPLAY_TOLERANCE_NANOS)
+            scorer.seek(loop != null && songNanos >= loop.startNanos() && songNanos < loop.endNanos() ? loop.startNanos() : songNanos);
+        else if (seeked)
+            scorer.seek(songNanos);
+        else if (songNanos <= replayScoreNanos)
+            return;
+        scorer.update(songNanos);
+        replayScoreNanos = songNanos;
+    }
+
+    // Sets up the drum instructions of the song
+    public void setup() {
 
         // Initialize points that need to be initialized
         metronome_corners_x = new int[]{
@@ -204,76 +384,43 @@ public class Visualizer extends JPanel {
         drumPoints.put(DrumPart.HI_HAT_PEDAL,	new Vec3(-185, -120));
         drumPoints.put(DrumPart.MISC,	        new Vec3(-225, 15));
 
-        // Set up midi file
-        sequence = MidiSystem.getSequence(new File(songPathname));
-        if (sequence.getDivisionType() != Sequence.PPQ)
-            throw new UnsupportedOperationException("Non-PPQ division is supported!");
-        MIDIFormatter.getInstance().setupFormatter(sequence);
-
-        // Convert channel 10 (9 in 0-indexed) to drum hits
-        TrackSettings settings = new TrackSettings();
-        List<DrumHit> leftHits = new ArrayList<>();
-        leftHits.add(new DrumHit(DrumPart.KICK, 0));
-        List<DrumHit> rightHits = new ArrayList<>();
-        rightHits.add(new DrumHit(DrumPart.KICK, 0));
-        for (Track track: sequence.getTracks()) {
-            for (int i = 0; i < track.size(); i++) {
-                MidiEvent event = track.get(i);
-                settings.update(event.getMessage());
-                if (settings.getChannel() != 9) continue;
-
-                DrumHit newHit = toDrumHit(settings, event);
-                if (newHit != null) {
-                    song.add(newHit);
-                    int result = evalDrumHit(newHit);
-                    switch (result) {
-                        case 1:
-                            leftHits.add(newHit);
-                            break;
-
-                        case 2:
-                            rightHits.add(newHit);
-                            break;
-                    }
-                }
-            }
-        }
-        deltaBeatNanos = (long) (SLOW_FACTOR * settings.tickToNanos(sequence.getResolution()));
-        leftHits.add(new DrumHit(DrumPart.KICK, Long.MAX_VALUE));
-        leftStick.hits = leftHits.toArray(new DrumHit[0]);
-        rightHits.add(new DrumHit(DrumPart.KICK, Long.MAX_VALUE));
-        rightStick.hits = rightHits.toArray(new DrumHit[0]);
-    }
-
-    final static DrumPart[] leftParts = new DrumPart[]{
-            DrumPart.SNARE, DrumPart.HI_TOM, DrumPart.MID_TOM, DrumPart.MISC
-    };
-    final static DrumPart[] rightParts = new DrumPart[]{
-            DrumPart.FLOOR_TOM, DrumPart.HI_HAT, DrumPart.CRASH, DrumPart.CRASH_2, DrumPart.RIDE
-    };
-
-    // Returns a number 0 - 2 inclusive whether a DrumHit should be left (1), right (2), or neither (0)
-    private int evalDrumHit(DrumHit hit) {
-        for (DrumPart part: leftParts) {
-            if (hit.drumPart == part)
-                return 1;
-        }
-        for (DrumPart part: rightParts) {
-            if (hit.drumPart == part)
-                return 2;
-        }
-        return 0;
+        // Drum hits & stick assignments come precompiled with the song,
+        // or are converted chunk by chunk while a streamed song is decoded
+        chart = song.isComplete() ? song.getDrumChart() : new DrumChart();
+        chart.update(song.getTimeline());
     }
 
-    // Converts a MidiEvent into a DrumHit
-    private DrumHit toDrumHit(TrackSettings settings, MidiEvent event) {
-        MidiMessage message = event.getMessage();
-        if (message instanceof ShortMessage shortMessage
-                && shortMessage.getCommand() == ShortMessage.NOTE_ON) {
-            return new DrumHit(drumKeyMap[shortMessage.getData1() - 35],
-                    (long) (settings.tickToNanos(event.getTick()) * SLOW_FACTOR));
-        }
-        return null;
+    // Finds where the sticks & effects are after a pause or seek
+    private void followMusic() {
+        recordClock();
+        loopPass = music.getAudibleLoopPass();
+        jumpTo(Math.max(0, getSongNanos()), false);
+        Arrays.fill(effects, null);
+        repaint();
+    }
+
+    // Moves the hit effects, metronome & sticks to a song time
+    // After a loop wrap, the sticks swing on from the loop's last hits to its first, instead of jumping
+    private void jumpTo(long songNanos, boolean wrapped) {
+        chart.update(song.getTimeline());
+        songIndex = chart.hitAt(songNanos);
+        leftStick.jumpTo(songNanos, wrapped);
+        rightStick.jumpTo(songNanos, wrapped);
+        nextBeatNanos = Metronome.nextBeatNanos(song, songNanos);
+        // A replay seeks the scorer itself, from the recorded times
+        if (scorer != null && replay == null) scorer.seek(songNanos);
+    }
+
+    // Speeds the song up or slows it down, right away and without a jump (sticks & audio just change pace)
+    private void changeSpeed(double delta) {
+        double speed = clamp(Math.round((music.getSpeed() + delta) / SPEED_STEP) * SPEED_STEP, MIN_SPEED, MAX_SPEED);
+        music.setSpeed(speed);
+        recordClock();
+    }
+
+    // Returns when a hit of the chart happens, in song nanoseconds
+    private long hitNanos(int hit) {
+        return chart.getNanos(hit);
     }
 
     @Override
@@ -285,18 +432,42 @@ public class Visualizer extends JPanel {
             g.drawImage(drumKitImage, DRUM_X, DRUM_Y, null);
         }
 
+        if (!firstFrameDrawn) {
+            firstFrameDrawn = true;
+            startup.mark("first frame");
+        }
+        if (music == null) {
+            drawLoading();
+            return;
+        }
+        if (!playing) {
+            playing = true;
+            startup.mark("playing");
+            System.err.println(startup);
+        }
+
         drawDebugInfo(false, true);
 
+        // Take in whatever a streamed song has decoded since the last frame
+        chart.update(song.getTimeline());
+
+        // The loop went back to its start since the last frame
+        long pass = music.getAudibleLoopPass();
+        if (pass != loopPass) {
+            loopPass = pass;
+            jumpTo(Math.max(0, getSongNanos()), music.getLoop() != null);
+        }
+
         // Draw metronome & pulse
         drawMetronome();
         if (getSongNanos() > nextBeatNanos) {
             addHitEffect(new Vec3(metronome_swing));
-            nextBeatNanos += deltaBeatNanos;
+            nextBeatNanos = Metronome.nextBeatNanos(song, nextBeatNanos + 1);
         }
 
         // Draw all hit effects
-        while (songIndex < song.size() && getSongNanos() > song.get(songIndex).startTimeNanos) {
-            addHitEffect(song.get(songIndex).getPoint());
+        while (songIndex < chart.size() && getSongNanos() > hitNanos(songIndex)) {
+            addHitEffect(drumPoints.get(chart.getPart(songIndex)));
             songIndex++;
         }
 
@@ -307,19 +478,48 @@ public class Visualizer extends JPanel {
         drawStick(rightStick);
         // commented out bc not work :(
 
+        if (replay != null) replayRecords();
+        if (recorder != null && System.nanoTime() - lastClockRecordNanos > CLOCK_RECORD_NANOS) recordClock();
+        if (scorer != null) drawScore();
+
         updateHitEffects();
     }
 
     // Inserts an immediate hit effect in the first empty spot, if any
     private void addHitEffect(Vec3 loc) {
+        addHitEffect(loc, new Color(0xFF_FF_C0));
+    }
+
+    private void addHitEffect(Vec3 loc, Color color) {
         for (int i = 0; i < effects.length; i++) {
             if (effects[i] == null) {
                 effects[i] = new HitEffect(loc, getSongNanos(), 300_000_000);
+                effects[i].color = color;
                 break;
             }
         }
     }
 
+    // Flashes the drums played (or missed) by how well they were timed, with the running accuracy
+    private void drawScore() {
+        if (replay == null) scorer.update(getSongNanos());
+        for (Judged j; (j = judged.poll()) != null; ) {
+            lastJudgement = j.judgement();
+            addHitEffect(drumPoints.get(j.part()), switch (j.judgement()) {
+                case ON_TIME -> new Color(0x40_E0_40);
+                case EARLY, LATE -> new Color(0xFF_C0_20);
+                case MISS, EXTRA -> new Color(0xE0_30_30);
+            });
+        }
+        g.setColor(Color.BLACK);
+        g.drawString(String.format("Accuracy %.1f%%, mean offset %+.1f ms", scorer.getAccuracy() * 100,
+                scorer.getMeanOffsetNanos() / 1e6), 10, 36);
+        if (lastJudgement != null)
+            g.drawString(lastJudgement.toString().replace('_', ' '), 10, 52);
+        if (replay != null)
+            g.drawString("Replay", 10, 68);
+    }
+
     // Draws effects and deletes completed effects (set to null)
     private void updateHitEffects() {
         for (int i = 0; i < effects.length; i++) {
@@ -342,7 +542,8 @@ public class Visualizer extends JPanel {
         g.drawPolygon(metronome_corners_x, metronome_corners_y, 3);
 
         // Get position of swing
-        double angle = (Math.PI / 8) * Math.cos(Math.PI * getSongNanos() / deltaBeatNanos - 0.25);
+        // Swings once per beat of the same grid the clicks are on
+        double angle = (Math.PI / 8) * Math.cos(Math.PI * Metronome.beatAt(song, getSongNanos()) - 0.25);
         metronome_swing.x = Math.sin(angle);
         metronome_swing.y = -Math.cos(angle);
         metronome_swing.scale(METRONOME_LENGTH).add(METRONOME_PIVOT);
@@ -381,18 +582,18 @@ public class Visualizer extends JPanel {
 
     // Updates a Stick object
     private void updateStick (Stick s) {
-        DrumHit fromHit = s.hits[s.index - 1];
-        DrumHit destHit = s.hits[s.index];
-        s.t = (double)(getSongNanos() - fromHit.startTimeNanos) / (destHit.startTimeNanos - fromHit.startTimeNanos);
-        if (s.t >= 1 && s.index < s.hits.length - 1) s.index++;
+        long fromNanos = s.getFromNanos();
+        long destNanos = s.getNanos(s.index);
+        s.t = (double)(getSongNanos() - fromNanos) / (destNanos - fromNanos);
+        if (s.t >= 1 && s.index < s.count() + 1) s.index++;
     }
 
     // Draws a Stick object
     private void drawStick(Stick s) {
         g.setColor(Stick.COLOR);
 
-        Vec3 from = s.hits[s.index - 1].getPoint();
-        Vec3 dest = s.hits[s.index].getPoint();
+        Vec3 from = drumPoints.get(s.getFromPart());
+        Vec3 dest = drumPoints.get(s.getPart(s.index));
 
         Vec3 head = VisMath.bounce(s.t, from, dest);
         fillCircle(head, Stick.HEAD_RADIUS);
@@ -408,6 +609,18 @@ public class Visualizer extends JPanel {
         ));
     }
 
+    // Shows which parts of startup are done while the song is loading
+    private void drawLoading() {
+        g.setColor(Color.BLACK);
+        int y = 20;
+        g.drawString(startupFailure != null ? "Failed to load " + songPathname + ": " + startupFailure.getCause()
+                : "Loading " + Path.of(songPathname).getFileName() + "...", 10, y);
+        for (Startup.Stage stage : startup.getStages()) {
+            if (stage.getDurationNanos() > 0)
+                g.drawString(String.format("%s %.0f ms", stage.name(), stage.getDurationNanos() / 1e6), 10, y += 16);
+        }
+    }
+
     // Can draw a grid and point data on screen for debugging / development
     private void drawDebugInfo(boolean grid, boolean points) {
         // draw grid
@@ -439,6 +652,9 @@ public class Visualizer extends JPanel {
 
             g.setColor(Color.BLACK);
             fillCircle(new Vec3(), 8);
+
+            // How far the sound trails the song clock, the sticks are drawn that much behind to match
+            g.drawString(String.format("A/V offset %.1f ms", music.getAudioOffsetNanos() / 1e6), 10, 20);
          }
     }
 
@@ -462,20 +678,32 @@ public class Visualizer extends JPanel {
         );
     }
 
-    // Returns the current progress in the song in nanoseconds
+    // Returns the current progress in the song in nanoseconds, as heard (see MusicHandler's SongClock)
     private long getSongNanos() {
-        return (System.nanoTime() * 1) - programStartNanos;
+        return music.getAudibleSongNanos();
     }
 
-    public static void main(String[] args) {
+    private static final long SEEK_NANOS = 5_000_000_000L;
+    private static final double SPEED_STEP = 0.05;
+    private static final double MIN_SPEED = 0.25;
+    private static final double MAX_SPEED = 2;
+    private static final String DEFAULT_SONG = "src/main/resources/Numb.mid";
+    private static final String DRUM_KIT_IMAGE = "src/main/resources/drums_600x600.png";
+    private static final int PREFETCH_NEIGHBOURS = 2;
+    private static final long CLOCK_RECORD_NANOS = 1_000_000_000;
+    private static final long REPLAY_TOLERANCE_NANOS = 50_000_000;
+
+    public static void main(String[] args) throws IOException {
+        // A replay plays the song it recorded
+        String replayPath = System.getProperty("drumvis.replay");
+        PracticeRecording replay = replayPath == null ? null : PracticeRecording.open(Path.of(replayPath));
+        if (replay != null) System.err.println("Replaying " + replay);
+        String songPathname = replay != null ? replay.getSongPath().toString() : args.length > 0 ? args[0] : DEFAULT_SONG;
+
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame("Drum Visualizer");
             frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-            try {
-                frame.setContentPane(new Visualizer());
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+            frame.setContentPane(new Visualizer(songPathname, replay));
             frame.pack();
             frame.setLocationRelativeTo(null);
             frame.setVisible(true);
@@ -484,20 +712,6 @@ public class Visualizer extends JPanel {
 
 
 
-    private class DrumHit {
-        public DrumPart drumPart;
-        public long startTimeNanos;
-
-        public DrumHit(DrumPart drumIndex, long startTimeNanos) {
-            this.drumPart = drumIndex;
-            this.startTimeNanos = startTimeNanos;
-        }
-
-        public Vec3 getPoint() {
-            return drumPoints.get(drumPart);
-        }
-    }
-
     private class Stick {
 
         final static Color COLOR = new Color(0xDE_B8_87);
@@ -508,11 +722,84 @@ public class Visualizer extends JPanel {
         public Vec3 wrist;
         double t = 0;
         public int index = 1;
-        public DrumHit[] hits;
+        public final boolean left;      // Plays the chart's left hits, otherwise its right hits
 
-        public Stick(Vec3 wrist, DrumHit[] hits) {
+        // Right after a loop wrap, the stick comes from the loop's last hit (as if it was just before the loop start)
+        int wrapIndex = -1;
+        long wrapFromNanos;
+        DrumPart wrapFromPart;
+
+        public Stick(Vec3 wrist, boolean left) {
             this.wrist = wrist;
-            this.hits = hits;
+            this.left = left;
+        }
+
+        // Number of hits known so far (grows while a song is streamed)
+        public int count() {
+            return left ? chart.getLeftCount() : chart.getRightCount();
+        }
+
+        // Index into the chart of the stick's n-th hit
+        private int hit(int n) {
+            return left ? chart.getLeftHit(n) : chart.getRightHit(n);
+        }
+
+        // Number of the stick's hits before a song time
+        private int countBefore(long songNanos) {
+            return left ? chart.leftCountBefore(songNanos) : chart.rightCountBefore(songNanos);
+        }
+
+        // The stick's first hit within the loop, or -1 if it has none
+        private int firstLoopHit(MusicHandler.LoopRegion region) {
+            int first = countBefore(region.startNanos());
+            return first < count() && hitNanos(hit(first)) < region.endNanos() ? first : -1;
+        }
+
+        // Time of the stick's i-th hit, where 0 & count() + 1 rest on the kick
+        // While looping, anything from the loop end on is really the loop's first hit, one repeat later
+        public long getNanos(int i) {
+            if (i == 0) return 0;
+            if (i > count()) return Long.MAX_VALUE;
+            long nanos = hitNanos(hit(i - 1));
+            MusicHandler.LoopRegion region = music.getLoop();
+            if (region != null && nanos >= region.endNanos()) {
+                int first = firstLoopHit(region);
+                return first < 0 ? Long.MAX_VALUE : hitNanos(hit(first)) + region.getLengthNanos();
+            }
+            return nanos;
+        }
+
+        public DrumPart getPart(int i) {
+            if (i == 0 || i > count()) return DrumPart.KICK;
+            MusicHandler.LoopRegion region = music.getLoop();
+            if (region != null && hitNanos(hit(i - 1)) >= region.endNanos()) {
+                int first = firstLoopHit(region);
+                return first < 0 ? DrumPart.KICK : chart.getPart(hit(first));
+            }
+            return chart.getPart(hit(i - 1));
+        }
+
+        // Where the stick swings from toward its current hit
+        public long getFromNanos() {
+            return index == wrapIndex ? wrapFromNanos : getNanos(index - 1);
+        }
+
+        public DrumPart getFromPart() {
+            return index == wrapIndex ? wrapFromPart : getPart(index - 1);
+        }
+
+        // Heads for the stick's next hit after a song time
+        public void jumpTo(long songNanos, boolean wrapped) {
+            index = 1 + countBefore(songNanos);
+            wrapIndex = -1;
+            MusicHandler.LoopRegion region = music.getLoop();
+            if (!wrapped || region == null || firstLoopHit(region) < 0 || getNanos(index - 1) >= region.startNanos())
+                return;
+
+            int last = countBefore(region.endNanos()) - 1;
+            wrapIndex = index;
+            wrapFromNanos = hitNanos(hit(last)) - region.getLengthNanos();
+            wrapFromPart = chart.getPart(hit(last));
         }
     }
 